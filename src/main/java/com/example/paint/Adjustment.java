@@ -0,0 +1,67 @@
+package com.example.paint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One step of an adjustment layer: a colour adjustment applied non-destructively to
+ * everything below the layer whenever the composite is built.
+ * - Immutable; changing a parameter means a new value, so history and the composite cache
+ *   see the change through {@link Layer.Props}
+ * - A layer's chain of steps is fused into one {@link PixelKernel} (one pass per tile row);
+ *   consecutive per-channel steps (invert, contrast, gamma) first become a single {@link ToneLut}
+ * - amount is only used by kinds that have a parameter, all -1..1 with 0 = no change
+ *   (gamma: 3^amount)
+ */
+public record Adjustment(Kind kind, double amount) {
+
+    public enum Kind {
+        INVERT("Invert"), GRAY("Grayscale"), BRIGHTNESS("Brightness"), CONTRAST("Contrast"), GAMMA("Gamma");
+
+        private final String label;
+        Kind(String label) { this.label = label; }
+        public boolean hasAmount() { return this != INVERT && this != GRAY; }
+        @Override public String toString() { return label; }
+    }
+
+    public static Adjustment of(Kind kind) { return new Adjustment(kind, 0); }
+
+    /** The step as a lookup table, or null when it mixes channels (gray, HSB brightness). */
+    ToneLut lut() {
+        return switch (kind) {
+            case INVERT -> ToneLut.invert();
+            case CONTRAST -> ToneLut.contrast(amount);
+            case GAMMA -> ToneLut.gamma(Math.pow(3, amount));
+            default -> null;
+        };
+    }
+
+    PixelKernel kernel() {
+        ToneLut t = lut();
+        if (t != null) return t.kernel();
+        return kind == Kind.GRAY ? Effects.GRAY : Effects.brightnessKernel(amount);
+    }
+
+    /** The whole chain as one kernel, with each run of table steps composed into one table. */
+    static PixelKernel fuse(List<Adjustment> chain) {
+        List<PixelKernel> ks = new ArrayList<>();
+        ToneLut run = null;
+        for (Adjustment a : chain) {
+            ToneLut t = a.lut();
+            if (t != null) {
+                run = run == null ? t : run.then(t);
+                continue;
+            }
+            if (run != null) ks.add(run.kernel());
+            run = null;
+            ks.add(a.kernel());
+        }
+        if (run != null) ks.add(run.kernel());
+        return PixelKernel.fuse(ks.toArray(PixelKernel[]::new));
+    }
+
+    @Override public String toString() {
+        if (kind == Kind.GAMMA) return String.format("%s %.2f", kind, Math.pow(3, amount));
+        return kind.hasAmount() ? String.format("%s %+.0f%%", kind, amount * 100) : kind.toString();
+    }
+}
@@ -1,20 +1,24 @@
 package com.example.paint;
 
-import javafx.scene.SnapshotParameters;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.image.PixelFormat;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
+import javafx.geometry.Point2D;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.Arrays;
 
-public class BucketFillTool implements Tool {
+/**
+ * Flood fill on click. While hovering, the region a click would fill is outlined on the
+ * overlay; regions come from the {@link RegionIndex}, so moving inside one costs a bit test
+ * and clicking a previewed region skips the fill search.
+ */
+public class BucketFillTool implements Tool, Hoverable {
+    private static final int TINT = 0x333399FF;                 // inside of the previewed region
+    private static final int EDGE_DARK = 0xFF000000, EDGE_LIGHT = 0xFFFFFFFF;
 
-    private static final int MAX_PIXELS = 16_000_000;
+    private boolean hovering;
+    private int hoverX, hoverY;
+    private RegionMask shown;                                   // region drawn on the overlay
+    private int[] shownView;                                    // visible rect it was drawn for
 
     @Override public String getName(){ return "Bucket"; }
 
@@ -27,105 +31,137 @@ public class BucketFillTool implements Tool {
 
         double tol = s.getFillTolerance();            // 0..1 (UI)
         boolean diag = s.isFillDiagonalConnectivity(); // 4-way vs 8-way
-        int expand = Math.max(0, Math.min(3, s.getFillExpandPixels()));
+        int expand = Math.max(-FloodFill.MAX_EXPAND, Math.min(FloodFill.MAX_EXPAND, s.getFillExpandPixels()));
 
-        floodFillBuffered(s, sx, sy, fill, tol, diag, expand);
-        h.push(); // one history entry
+        hidePreview(s);
+        Fill cmd = new Fill(sx, sy, fill, tol, diag, expand, s.isSampleAllLayers(), s.isFillContiguous());
+        cmd.apply(s);
+        h.push(cmd); // one history entry
+        hover(s, sx, sy);   // start on the filled region's new outline right away
+    }
+
+    /**
+     * A flood fill from (x,y) with the settings in effect at the click.
+     * The region is found in the composite (sampleAll) or the active layer; it is always painted into the active layer.
+     * Non-contiguous fills replace every similar pixel, connected or not.
+     */
+    public record Fill(int x, int y, Color color, double tolerance, boolean diagonal, int expand, boolean sampleAll,
+                       boolean contiguous) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            floodFill(s, x, y, color, tolerance, diagonal, expand, sampleAll, contiguous);
+        }
     }
 
     @Override public void onDrag(CanvasState s, HistoryManager h, MouseEvent e) { }
     @Override public void onRelease(CanvasState s, HistoryManager h, MouseEvent e) { }
 
-    private void floodFillBuffered(CanvasState s, int sx, int sy, Color fillColor,
-                                   double tol, boolean diagonal, int expandPixels) {
-
-        int w = (int) s.getBase().getWidth();
-        int h = (int) s.getBase().getHeight();
-        if (w <= 0 || h <= 0 || sx < 0 || sy < 0 || sx >= w || sy >= h) return;
-        if ((long) w * (long) h > MAX_PIXELS) return;
+    @Override
+    public void onDeselect(CanvasState s, HistoryManager h) {
+        hidePreview(s);
+        hovering = false;
+    }
 
-        SnapshotParameters sp = new SnapshotParameters();
-        sp.setFill(Color.TRANSPARENT);
-        WritableImage snap = s.getBase().snapshot(sp, null);
-        PixelReader pr = snap.getPixelReader();
-        if (pr == null) return;
+    // ---------- Hover preview ----------
+    @Override
+    public void onMove(CanvasState s, double sceneX, double sceneY) {
+        Point2D p = s.getInputSurface().sceneToLocal(sceneX, sceneY);
+        hover(s, (int) Math.floor(p.getX()), (int) Math.floor(p.getY()));
+    }
 
-        int[] argb = new int[w * h];
-        for (int y = 0; y < h; y++) {
-            pr.getPixels(0, y, w, 1, PixelFormat.getIntArgbInstance(), argb, y * w, w);
-        }
+    @Override
+    public void onExit(CanvasState s) {
+        hidePreview(s);
+        hovering = false;
+    }
 
-        int startIdx = sy * w + sx;
-        int target = argb[startIdx];
-        int replacement = toIntArgb(fillColor);
+    /** Outline the region a click at (x,y) would fill, from the index or once it is computed. */
+    private void hover(CanvasState s, int x, int y) {
+        hovering = true;
+        hoverX = x;
+        hoverY = y;
+        RasterDocument src = s.isSampleAllLayers() ? s.getLayers().getComposite() : s.getDocument();
+        if (!src.contains(x, y)) { hidePreview(s); return; }
+
+        double tol = s.getFillTolerance();
+        boolean diag = s.isFillDiagonalConnectivity(), contiguous = s.isFillContiguous();
+        RegionIndex index = s.getRegionIndex();
+        RegionMask m = index.lookup(src, x, y, tol, diag, contiguous);
+        if (m != null) { showPreview(s, m); return; }
+        index.request(src, x, y, tol, diag, contiguous, r -> {
+            if (hovering && hoverX == x && hoverY == y) showPreview(s, r);
+        });
+    }
 
-        // If the region is already exactly the replacement color and tol is ~0, nothing to do
-        if (target == replacement && tol <= 1e-6) return;
-
-        // Prep target components and distance threshold
-        int ta = (target >>> 24) & 0xFF;
-        int tr = (target >>> 16) & 0xFF;
-        int tg = (target >>> 8)  & 0xFF;
-        int tb = (target)        & 0xFF;
-        double maxDist = tolToDistance(tol);
-
-        // Build a mask of which pixels belong to the region
-        boolean[] inRegion = new boolean[w * h];
-        Queue<int[]> q = new ArrayDeque<>();
-        q.add(new int[]{sx, sy});
-        inRegion[startIdx] = true;
-
-        int[][] neighbors4 = {{1,0},{-1,0},{0,1},{0,-1}};
-        int[][] neighbors8 = {{1,0},{-1,0},{0,1},{0,-1},{1,1},{1,-1},{-1,1},{-1,-1}};
-        int[][] N = diagonal ? neighbors8 : neighbors4;
-
-        while (!q.isEmpty()) {
-            int[] p = q.remove();
-            int x = p[0], y = p[1];
-
-            for (int[] d : N) {
-                int nx = x + d[0], ny = y + d[1];
-                if (nx < 0 || ny < 0 || nx >= w || ny >= h) continue;
-                int ni = ny * w + nx;
-                if (inRegion[ni]) continue;
-
-                int c = argb[ni];
-                if (matches(c, tr, tg, tb, ta, maxDist)) {
-                    inRegion[ni] = true;
-                    q.add(new int[]{nx, ny});
+    /** Tint the visible part of the region and mark its border pixels (black/white dashes). */
+    private void showPreview(CanvasState s, RegionMask m) {
+        int[] v = s.visibleRect();
+        if (m == shown && Arrays.equals(v, shownView)) return;
+        s.clearOverlay();
+        shown = m;
+        shownView = v;
+        if (v == null || m.isEmpty()) return;
+        int x0 = Math.max(v[0], m.getMinX()), y0 = Math.max(v[1], m.getMinY());
+        int x1 = Math.min(v[2], m.getMaxX() + 1), y1 = Math.min(v[3], m.getMaxY() + 1);
+        if (x1 <= x0 || y1 <= y0) return;
+
+        int w = x1 - x0, h = y1 - y0;
+        int[] px = new int[w * h];
+        for (int y = y0; y < y1; y++) {
+            int row = (y - y0) * w - x0;
+            for (int x = m.next(y, x0, x1, true); x < x1; ) {
+                int end = m.next(y, x, x1, false);
+                for (int xx = x; xx < end; xx++) {
+                    boolean edge = !m.contains(xx - 1, y) || !m.contains(xx + 1, y)
+                            || !m.contains(xx, y - 1) || !m.contains(xx, y + 1);
+                    px[row + xx] = !edge ? TINT : ((xx + y) & 4) == 0 ? EDGE_DARK : EDGE_LIGHT;
                 }
+                x = m.next(y, end, x1, true);
             }
         }
+        s.drawOverlayImage(MagicWandTool.toImage(px, w, h), x0, y0);
+    }
 
-        // Optional: expand (dilate) mask by N pixels to hug anti-aliased borders
-        for (int k = 0; k < expandPixels; k++) {
-            boolean[] next = inRegion.clone();
-            for (int y = 0; y < h; y++) {
-                int row = y * w;
-                for (int x = 0; x < w; x++) {
-                    int i = row + x;
-                    if (inRegion[i]) continue;
-                    boolean any = false;
-                    for (int[] d : N) {
-                        int nx = x + d[0], ny = y + d[1];
-                        if (nx < 0 || ny < 0 || nx >= w || ny >= h) continue;
-                        if (inRegion[ny * w + nx]) { any = true; break; }
-                    }
-                    if (any) next[i] = true;
-                }
-            }
-            inRegion = next;
-        }
+    private void hidePreview(CanvasState s) {
+        if (shown != null) s.clearOverlay();
+        shown = null;
+        shownView = null;
+    }
 
-        // Paint: write back exactly once (no mid-fill streaks)
-        for (int i = 0; i < argb.length; i++) {
-            if (inRegion[i]) argb[i] = replacement;
-        }
-        GraphicsContext g = s.getBase().getGraphicsContext2D();
-        PixelWriter pw = g.getPixelWriter();
-        for (int y = 0; y < h; y++) {
-            pw.setPixels(0, y, w, 1, PixelFormat.getIntArgbInstance(), argb, y * w, w);
+    /**
+     * Fill the connected region around (sx,sy). The region is found by the scanline engine in
+     * {@link FloodFill} straight from the tiles, so there is no document-size limit; only the
+     * region's bounding box is touched when expanding and writing back.
+     */
+    private static void floodFill(CanvasState s, int sx, int sy, Color fillColor,
+                                  double tol, boolean diagonal, int expandPixels, boolean sampleAll,
+                                  boolean contiguous) {
+
+        RasterDocument doc = s.getDocument();
+        int w = doc.getWidth();
+        int h = doc.getHeight();
+        if (w <= 0 || h <= 0 || sx < 0 || sy < 0 || sx >= w || sy >= h) return;
+
+        // sample the active layer or the cached composite (no full-size copy)
+        RasterDocument src = sampleAll ? s.getLayers().getComposite() : doc;
+        int replacement = toIntArgb(fillColor);
+
+        // If the region is already exactly the replacement color and tol is ~0, nothing to do
+        if (src.getArgb(sx, sy) == replacement && tol <= 1e-6) return;
+
+        // a region already found for the hover preview is reused (it is dropped on any edit near it)
+        RegionMask m = s.getRegionIndex().lookup(src, sx, sy, tol, diagonal, contiguous);
+        if (m == null) {
+            m = (contiguous ? FloodFill.region(src, sx, sy, tol, diagonal) : FloodFill.similar(src, sx, sy, tol)).mask;
+        } else if (expandPixels != 0) {
+            m = m.copy();                                // keep the cached region intact
         }
+        // Optional: grow (or shrink, if negative) the mask by N pixels to hug anti-aliased borders
+        FloodFill.expand(m, expandPixels, diagonal);
+
+        // Paint: write back exactly once (no mid-fill streaks), one run per row segment
+        FloodFill.paint(m, doc, replacement);
+        if (!m.isEmpty()) s.invalidate(m.getMinX(), m.getMinY(), m.getMaxX() - m.getMinX() + 1, m.getMaxY() - m.getMinY() + 1);
     }
 
     private static int toIntArgb(Color c) {
@@ -135,24 +171,4 @@ public class BucketFillTool implements Tool {
         int b = (int) Math.round(c.getBlue()    * 255.0);
         return (a << 24) | (r << 16) | (g << 8) | b;
     }
-
-    private static boolean matches(int argb, int tr, int tg, int tb, int ta, double maxDist) {
-        int a = (argb >>> 24) & 0xFF;
-        int r = (argb >>> 16) & 0xFF;
-        int g = (argb >>> 8)  & 0xFF;
-        int b = (argb)        & 0xFF;
-
-        if (argb == ((ta << 24) | (tr << 16) | (tg << 8) | tb)) return true;
-        if (ta == 0) { // fully transparent target: compare mostly alpha
-            return Math.abs(a - ta) <= maxDist * 255.0;
-        }
-        double dr = r - tr, dg = g - tg, db = b - tb, da = (a - ta) * 0.5; // alpha half-weight
-        double dist = Math.sqrt(dr*dr + dg*dg + db*db + da*da) / 255.0;    // normalized ~0..1.2
-        return dist <= maxDist;
-    }
-
-    private static double tolToDistance(double tol) {
-        tol = Math.max(0.0, Math.min(1.0, tol));
-        return Math.pow(tol, 0.8) * 0.9;
-    }
 }
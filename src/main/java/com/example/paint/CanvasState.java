@@ -1,5 +1,6 @@
 package com.example.paint;
 
+import javafx.animation.AnimationTimer;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.beans.value.ChangeListener;
@@ -13,24 +14,64 @@ import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
 import javafx.scene.transform.Scale;
 import javafx.scene.transform.Translate;
 
-import javafx.embed.swing.SwingFXUtils;
 import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
 
 public class CanvasState {
 
-    private final Canvas base = new Canvas(1600, 1200);
-    private final Canvas overlay = new Canvas(1600, 1200);
-
-    private final Group content = new Group(base, overlay); // transform target
+    // Pixel source of truth; the tile views only display the flattened layers
+    private final LayerStack layers = new LayerStack(1600, 1200);
+
+    // Display: one ImageView per non-empty composite tile, so transparent areas cost nothing
+    // and the document is not limited to what a single Canvas texture can hold.
+    // Only tiles around the visible window are in the scene (see updateVisibleTiles); zoomed
+    // out, the views show MipPyramid levels, each view covering 256 << viewLevel document pixels.
+    private static final int T = RasterDocument.TILE_SIZE;
+    private final Group tiles = new Group();
+    private ImageView[] tileViews = new ImageView[0];   // rendered views, shown or parked
+    private boolean[] staleViews = new boolean[0];      // parked view missed an update
+    private final int[] uploadBuf = new int[T * T];
+    // views that scrolled out, kept (LRU) so panning back does not re-render them
+    private final LinkedHashMap<Integer, ImageView> parked = new LinkedHashMap<>(64, 0.75f, true);
+    private static final int MAX_PARKED_VIEWS = 256, VIEW_MARGIN = 1; // margin in tiles
+    private int visX0, visY0, visX1, visY1;             // shown tile range [x0,x1) × [y0,y1)
+    private final MipPyramid mips = new MipPyramid(layers);
+    private final RegionIndex regions = new RegionIndex();   // bucket regions for hover/click
+    private final Histogram histogram = new Histogram();     // of the active layer, per tile
+    private long edits;                                 // invalidate() calls so far
+    private int viewLevel;                              // 0 = full resolution, n = 1/2^n
+
+    // Overlay for previews covers only the visible part of the document (see updateOverlayWindow)
+    private static final int MAX_OVERLAY = 8192, OVERLAY_MARGIN = 256;
+    private final Canvas overlay = new Canvas(1, 1);
+    private int overlayX, overlayY; // document position of the overlay's top-left
+
+    // Transparent document-sized surface on top; all tool input arrives here in document coords
+    private final Rectangle inputSurface = new Rectangle(1600, 1200, Color.TRANSPARENT);
+
+    private boolean fixedSize;                // an opened image defines the document size
+    private double viewportW = 1600, viewportH = 1200;
+
+    // Regions written since the last display flush
+    private final DirtyRegion displayDirty = new DirtyRegion();
+    private final AnimationTimer displayFlusher = new AnimationTimer() {
+        @Override public void handle(long now) { flushDisplay(); }
+    };
+
+    private final Group content = new Group(tiles, overlay, inputSurface); // transform target
     private final Pane container = new Pane(content);
     private final StackPane viewport = new StackPane(container);
 
@@ -53,6 +94,7 @@ public class CanvasState {
     private final CheckBox italic = new CheckBox("I");
 
     private WritableImage selection;
+    private RegionMask selectionMask;         // null = the whole selection rectangle
     private double selX, selY;
 
     private final Translate translate = new Translate(0, 0);
@@ -67,6 +109,12 @@ public class CanvasState {
         clearBaseTransparent();
 
         content.getTransforms().setAll(translate, scale);
+        overlay.setMouseTransparent(true);
+        inputSurface.setPickOnBounds(true);
+        inputSurface.cursorProperty().bind(overlay.cursorProperty()); // tools set cursors on the overlay
+        syncDisplaySize();
+        container.widthProperty().addListener((o, a, v) -> updateViewport());
+        container.heightProperty().addListener((o, a, v) -> updateViewport());
 
         // Force the area AROUND the canvas to white, regardless of theme
         container.getStyleClass().add("canvas-container");
@@ -104,23 +152,12 @@ public class CanvasState {
         fontFamily.getItems().addAll("Arial","System","Courier New","Times New Roman","Verdana","Consolas");
         fontFamily.setValue("Arial");
 
-        overlay.addEventHandler(javafx.scene.input.MouseEvent.MOUSE_MOVED, e -> {
-            lastMouseX = e.getX();
-            lastMouseY = e.getY();
-            hasMouse = true;
-        });
-        overlay.addEventHandler(javafx.scene.input.MouseEvent.MOUSE_DRAGGED, e -> {
-            lastMouseX = e.getX();
-            lastMouseY = e.getY();
-            hasMouse = true;
-        });
-        // Also update when moving over the base (in case overlay is clear)
-        base.addEventHandler(javafx.scene.input.MouseEvent.MOUSE_MOVED, e -> {
+        inputSurface.addEventHandler(javafx.scene.input.MouseEvent.MOUSE_MOVED, e -> {
             lastMouseX = e.getX();
             lastMouseY = e.getY();
             hasMouse = true;
         });
-        base.addEventHandler(javafx.scene.input.MouseEvent.MOUSE_DRAGGED, e -> {
+        inputSurface.addEventHandler(javafx.scene.input.MouseEvent.MOUSE_DRAGGED, e -> {
             lastMouseX = e.getX();
             lastMouseY = e.getY();
             hasMouse = true;
@@ -128,8 +165,21 @@ public class CanvasState {
     }
 
     // ---------- UI getters ----------
-    public Canvas getBase() { return base; }
+    /** The active layer's pixels; tools read and write here. */
+    public RasterDocument getDocument() { return layers.getActiveDocument(); }
+    public LayerStack getLayers() { return layers; }
+    /** Preview canvas; draw on its GC in document coordinates. */
     public Canvas getOverlay() { return overlay; }
+    /** Receives mouse input for tools; event coordinates are document pixels. */
+    public Node getInputSurface() { return inputSurface; }
+    RegionIndex getRegionIndex() { return regions; }
+    /** Histogram of the active layer, brought up to date (only edited tiles are recounted). */
+    public Histogram getHistogram() {
+        histogram.refresh(getDocument());
+        return histogram;
+    }
+    /** Grows on every invalidate(), so a background job can tell whether pixels changed under it. */
+    long getEditCount() { return edits; }
     public StackPane getViewport() { return viewport; }
     public HBox getStatusBar() { return statusBar; }
 
@@ -155,7 +205,18 @@ public class CanvasState {
     public double getZoom(){ return zoom; }
 
     public WritableImage getSelection(){ return selection; }
-    public void setSelection(WritableImage img){ selection = img; }
+    /** Set a rectangular selection (clears any mask; shaped selections call setSelectionMask next). */
+    public void setSelection(WritableImage img){ selection = img; selectionMask = null; }
+    /** Which pixels of the selection are selected, in document coordinates; null for a plain rectangle. */
+    public RegionMask getSelectionMask(){ return selectionMask; }
+    public void setSelectionMask(RegionMask m){ selectionMask = m; }
+    /** The current selection as a mask (rectangles converted), or null if nothing is selected. */
+    public RegionMask getSelectionRegion(){
+        if (selection == null) return null;
+        if (selectionMask != null) return selectionMask;
+        return RegionMask.rect(layers.getWidth(), layers.getHeight(), (int) selX, (int) selY,
+                (int) selection.getWidth(), (int) selection.getHeight());
+    }
     public double getSelX(){ return selX; }
     public double getSelY(){ return selY; }
     public void setSelPos(double x, double y){ selX=x; selY=y; }
@@ -185,11 +246,25 @@ public class CanvasState {
     public int getFillExpandPixels() { return fillExpandPixels.get(); }
     public javafx.beans.property.IntegerProperty fillExpandPixelsProperty() { return fillExpandPixels; }
 
+    private final javafx.beans.property.BooleanProperty fillContiguous =
+            new javafx.beans.property.SimpleBooleanProperty(true);  // off = replace colour everywhere
+
+    public boolean isFillContiguous() { return fillContiguous.get(); }
+    public javafx.beans.property.BooleanProperty fillContiguousProperty() { return fillContiguous; }
+
+    // ---- Sampling (Bucket + Eyedropper): active layer or all layers ----
+    private final javafx.beans.property.BooleanProperty sampleAllLayers =
+            new javafx.beans.property.SimpleBooleanProperty(false);
+
+    public boolean isSampleAllLayers() { return sampleAllLayers.get(); }
+    public javafx.beans.property.BooleanProperty sampleAllLayersProperty() { return sampleAllLayers; }
+
 
     // ---------- Pan & Zoom ----------
     public void applyPanZoom(){
         scale.setX(zoom);
         scale.setY(zoom);
+        updateViewport();
         refreshHud();
     }
 
@@ -224,8 +299,8 @@ public class CanvasState {
 
     /** Clamp a top-left paste position so the image stays fully on the canvas. */
     public javafx.geometry.Point2D clampPasteTopLeft(double imgW, double imgH, double desiredX, double desiredY) {
-        double maxX = Math.max(0, getBase().getWidth()  - imgW);
-        double maxY = Math.max(0, getBase().getHeight() - imgH);
+        double maxX = Math.max(0, layers.getWidth()  - imgW);
+        double maxY = Math.max(0, layers.getHeight() - imgH);
         double px = Math.min(Math.max(0, desiredX), maxX);
         double py = Math.min(Math.max(0, desiredY), maxY);
         return new javafx.geometry.Point2D(px, py);
@@ -251,27 +326,62 @@ public class CanvasState {
     }
 
     // ---------- Resize & Reset (transparent-safe) ----------
+    /** Follow the window size, unless an opened image fixed the document size. */
     public void resizeCanvas(double newW, double newH) {
         if (newW <= 1 || newH <= 1) return;
+        viewportW = newW;
+        viewportH = newH;
+        if (fixedSize) return;
+        setDocumentSize((int) Math.ceil(newW), (int) Math.ceil(newH));
+    }
 
-        // snapshot with transparent fill to preserve alpha
-        SnapshotParameters sp = new SnapshotParameters();
-        sp.setFill(Color.TRANSPARENT);
-        WritableImage snap = base.snapshot(sp, null);
-
-        base.setWidth(newW);
-        base.setHeight(newH);
-        overlay.setWidth(newW);
-        overlay.setHeight(newH);
+    private void setDocumentSize(int newW, int newH) {
+        int oldW = layers.getWidth(), oldH = layers.getHeight();
 
-        // DO NOT paint white — leave transparent background
-        GraphicsContext g = base.getGraphicsContext2D();
-        g.clearRect(0, 0, newW, newH); // full transparent
-        g.drawImage(snap, 0, 0);
+        // the layers keep their pixels (and alpha); the display just follows their size
+        layers.resize(newW, newH);
+        int w = layers.getWidth(), h = layers.getHeight();
+        syncDisplaySize();
 
+        // tiles that kept their size keep their view; only newly exposed strips need pixels
+        invalidate(oldW, 0, w - oldW, h);
+        invalidate(0, oldH, Math.min(oldW, w), h - oldH);
         clearOverlay();
     }
 
+    /** Size the input surface and the tile-view grid to the document. */
+    private void syncDisplaySize() {
+        int w = layers.getWidth(), h = layers.getHeight();
+        inputSurface.setWidth(w);
+        inputSurface.setHeight(h);
+
+        // re-index the views that still fit; everything starts parked and the
+        // visible ones are shown again below (edge tiles that changed size are rebuilt then)
+        int span = viewSpan(), cols = viewCols(), rows = viewRows();
+        ImageView[] next = new ImageView[cols * rows];
+        boolean[] nextStale = new boolean[cols * rows];
+        tiles.getChildren().clear();
+        parked.clear();
+        for (int i = 0; i < tileViews.length; i++) {
+            ImageView v = tileViews[i];
+            if (v == null) continue;
+            int tx = (int) v.getLayoutX() / span, ty = (int) v.getLayoutY() / span;
+            boolean fits = tx < cols && ty < rows
+                    && v.getImage().getWidth() == levelSize(Math.min(span, w - tx * span))
+                    && v.getImage().getHeight() == levelSize(Math.min(span, h - ty * span));
+            if (!fits) continue;
+            int j = ty * cols + tx;
+            next[j] = v;
+            nextStale[j] = staleViews[i];
+            parked.put(j, v);
+        }
+        tileViews = next;
+        staleViews = nextStale;
+        visX0 = visY0 = visX1 = visY1 = 0;
+        updateViewport();
+        trimParked();
+    }
+
     public void bindToScrollPane(ScrollPane sp) {
         // force the scrollpane backgrounds to white as well
         sp.setStyle("-fx-background: white; -fx-background-color: white;");
@@ -281,10 +391,41 @@ public class CanvasState {
         if (b != null) resizeCanvas(b.getWidth(), b.getHeight());
     }
 
+    /** The document has its own size (opened or resized image) instead of following the window. */
+    public boolean isFixedSize() { return fixedSize; }
+
+    /** History brought back a different layer layout or document size: match the display to it. */
+    void layoutRestored() {
+        syncDisplaySize();
+        invalidateAll();
+    }
+
+    /**
+     * Image > Resize: scale every layer's pixels to w×h with the given filter. The document
+     * keeps that size from then on (it no longer follows the window).
+     */
+    public void resampleImage(int w, int h, Resampler.Method m) {
+        if (w < 1 || h < 1) return;
+        fixedSize = true;
+        for (Layer l : layers.getLayers()) {
+            RasterDocument d = l.getDocument();
+            if (d.getAllocatedTileCount() == 0) d.resize(w, h);   // nothing to scale
+            else d.restore(Resampler.resample(d, w, h, m).snapshot());
+        }
+        setDocumentSize(w, h);
+        selection = null;
+        selectionMask = null;
+        invalidateAll();
+    }
+
     public void resetAll() {
-        clearBaseTransparent();
+        fixedSize = false;
+        layers.reset();
+        setDocumentSize((int) Math.ceil(viewportW), (int) Math.ceil(viewportH));
+        invalidateAll();
         clearOverlay();
         selection = null;
+        selectionMask = null;
         selX = selY = 0;
         zoom = 1.0;
         translate.setX(0); translate.setY(0);
@@ -294,7 +435,145 @@ public class CanvasState {
 
     // ---------- Drawing helpers ----------
     public void clearOverlay(){
-        overlay.getGraphicsContext2D().clearRect(0,0,overlay.getWidth(), overlay.getHeight());
+        overlay.getGraphicsContext2D().clearRect(overlayX, overlayY, overlay.getWidth(), overlay.getHeight());
+    }
+
+    /** Bring the scene in line with the current pan/zoom and container size. */
+    private void updateViewport() {
+        updateVisibleTiles();
+        updateOverlayWindow();
+    }
+
+    /** Document rectangle {x0, y0, x1, y1} currently on screen, or null if none is. */
+    int[] visibleRect() {
+        int W = layers.getWidth(), H = layers.getHeight();
+        double vx0 = -translate.getX() / zoom, vy0 = -translate.getY() / zoom;
+        int x0 = (int) clamp(Math.floor(vx0), 0, W), y0 = (int) clamp(Math.floor(vy0), 0, H);
+        int x1 = (int) clamp(Math.ceil(vx0 + container.getWidth() / zoom), 0, W);
+        int y1 = (int) clamp(Math.ceil(vy0 + container.getHeight() / zoom), 0, H);
+        if (x1 <= x0 || y1 <= y0) return null;             // nothing visible (or not laid out yet)
+        return new int[]{x0, y0, x1, y1};
+    }
+
+    /**
+     * Keep only the tile views around the visible window in the scene. Views that leave it
+     * are parked rather than dropped, so panning back just re-attaches them; the work is
+     * proportional to the tiles entering or leaving the window, not to the document size.
+     */
+    private void updateVisibleTiles() {
+        int level = MipPyramid.levelFor(zoom);
+        if (level != viewLevel) {                       // other grid: start over at the new level
+            viewLevel = level;
+            tiles.getChildren().clear();
+            parked.clear();
+            tileViews = new ImageView[viewCols() * viewRows()];
+            staleViews = new boolean[tileViews.length];
+            visX0 = visY0 = visX1 = visY1 = 0;
+        }
+        int span = viewSpan(), cols = viewCols(), rows = viewRows();
+        int[] v = visibleRect();
+        int nx0 = 0, ny0 = 0, nx1 = 0, ny1 = 0;
+        if (v != null) {
+            nx0 = Math.max(0, v[0] / span - VIEW_MARGIN);
+            ny0 = Math.max(0, v[1] / span - VIEW_MARGIN);
+            nx1 = Math.min(cols, (v[2] + span - 1) / span + VIEW_MARGIN);
+            ny1 = Math.min(rows, (v[3] + span - 1) / span + VIEW_MARGIN);
+        }
+        if (nx0 == visX0 && ny0 == visY0 && nx1 == visX1 && ny1 == visY1) return;
+
+        for (int ty = visY0; ty < visY1; ty++)
+            for (int tx = visX0; tx < visX1; tx++)
+                if (tx < nx0 || tx >= nx1 || ty < ny0 || ty >= ny1) parkView(ty * cols + tx);
+        int ox0 = visX0, oy0 = visY0, ox1 = visX1, oy1 = visY1;
+        visX0 = nx0; visY0 = ny0; visX1 = nx1; visY1 = ny1;
+        for (int ty = ny0; ty < ny1; ty++)
+            for (int tx = nx0; tx < nx1; tx++)
+                if (tx < ox0 || tx >= ox1 || ty < oy0 || ty >= oy1) showView(tx, ty);
+        trimParked();
+    }
+
+    /** Document pixels covered by one tile view at the current level. */
+    private int viewSpan() { return T << viewLevel; }
+    private int viewCols() { return (layers.getWidth() + viewSpan() - 1) / viewSpan(); }
+    private int viewRows() { return (layers.getHeight() + viewSpan() - 1) / viewSpan(); }
+    /** Image pixels for n document pixels at the current level. */
+    private int levelSize(int n) { return (n + (1 << viewLevel) - 1) >> viewLevel; }
+
+    private boolean isShown(int tx, int ty) {
+        return tx >= visX0 && tx < visX1 && ty >= visY0 && ty < visY1;
+    }
+
+    /** Put a tile's view back on screen, rendering it only if it has none or missed updates. */
+    private void showView(int tx, int ty) {
+        int span = viewSpan(), i = ty * viewCols() + tx;
+        ImageView v = parked.remove(i);
+        if (v != null) tiles.getChildren().add(v);
+        if (tileViews[i] == null || staleViews[i]) {
+            staleViews[i] = false;
+            int x = tx * span, y = ty * span;
+            uploadTile(i, x, y, Math.min(span, layers.getWidth() - x), Math.min(span, layers.getHeight() - y));
+        }
+    }
+
+    private void parkView(int i) {
+        ImageView v = tileViews[i];
+        if (v == null) return;
+        tiles.getChildren().remove(v);
+        parked.put(i, v);
+    }
+
+    /** Drop the least recently shown parked views beyond MAX_PARKED_VIEWS. */
+    private void trimParked() {
+        var it = parked.entrySet().iterator();
+        while (parked.size() > MAX_PARKED_VIEWS && it.hasNext()) {
+            int i = it.next().getKey();
+            it.remove();
+            tileViews[i] = null;
+            staleViews[i] = false;
+        }
+    }
+
+    /**
+     * Keep the overlay covering the visible part of the document plus a margin, capped at
+     * MAX_OVERLAY per side, instead of the whole document. The GC is translated so callers
+     * keep drawing in document coordinates. The window only moves once the view leaves it.
+     */
+    private void updateOverlayWindow() {
+        int W = layers.getWidth(), H = layers.getHeight();
+        int[] v = visibleRect();
+        if (v == null) return;
+        int x0 = v[0], y0 = v[1], x1 = v[2], y1 = v[3];
+
+        int ow = (int) overlay.getWidth(), oh = (int) overlay.getHeight();
+        boolean covers = x0 >= overlayX && y0 >= overlayY && x1 <= overlayX + ow && y1 <= overlayY + oh
+                && overlayX + ow <= W && overlayY + oh <= H;
+        boolean oversized = ow > (x1 - x0) + 4 * OVERLAY_MARGIN || oh > (y1 - y0) + 4 * OVERLAY_MARGIN;
+        if (covers && !oversized) return;
+
+        int nx0 = Math.max(0, x0 - OVERLAY_MARGIN), nx1 = Math.min(W, x1 + OVERLAY_MARGIN);
+        int ny0 = Math.max(0, y0 - OVERLAY_MARGIN), ny1 = Math.min(H, y1 + OVERLAY_MARGIN);
+        if (nx1 - nx0 > MAX_OVERLAY) { nx0 = Math.max(0, (x0 + x1 - MAX_OVERLAY) / 2); nx1 = Math.min(W, nx0 + MAX_OVERLAY); }
+        if (ny1 - ny0 > MAX_OVERLAY) { ny0 = Math.max(0, (y0 + y1 - MAX_OVERLAY) / 2); ny1 = Math.min(H, ny0 + MAX_OVERLAY); }
+        moveOverlay(nx0, ny0, nx1 - nx0, ny1 - ny0);
+    }
+
+    private void moveOverlay(int x, int y, int w, int h) {
+        SnapshotParameters sp = new SnapshotParameters();
+        sp.setFill(Color.TRANSPARENT);
+        WritableImage old = overlay.snapshot(sp, null);    // keep any preview in progress
+        int oldX = overlayX, oldY = overlayY;
+
+        overlay.setWidth(w);
+        overlay.setHeight(h);
+        overlay.setLayoutX(x);
+        overlay.setLayoutY(y);
+        overlayX = x;
+        overlayY = y;
+
+        var g = overlay.getGraphicsContext2D();
+        g.setTransform(1, 0, 0, 1, -x, -y);                 // document coords → overlay pixels
+        g.clearRect(x, y, w, h);
+        g.drawImage(old, oldX, oldY);
     }
 
     /** Draw an image onto the overlay at (x,y). Use for previews/selection ghosts. */
@@ -302,44 +581,151 @@ public class CanvasState {
         overlay.getGraphicsContext2D().drawImage(img, x, y);
     }
 
-    /** Merge the current overlay into the base, preserving transparency, then clear the overlay. */
-    public void commitOverlay() {
+    /**
+     * Render straight into the active layer, whatever the view: draw paints in document
+     * coordinates onto a scratch canvas covering just the given bounds (in pieces of at most
+     * MAX_OVERLAY per side), which is blended in preserving transparency. History commands draw
+     * this way so replay never depends on the overlay window; the overlay is for previews only.
+     */
+    public void drawToDocument(double x, double y, double w, double h, Consumer<GraphicsContext> draw) {
+        RasterDocument document = getDocument();
+        int x0 = (int) Math.max(0, Math.floor(x)), y0 = (int) Math.max(0, Math.floor(y));
+        int x1 = (int) Math.min(document.getWidth(), Math.ceil(x + w));
+        int y1 = (int) Math.min(document.getHeight(), Math.ceil(y + h));
+        if (x1 <= x0 || y1 <= y0) return;
         SnapshotParameters sp = new SnapshotParameters();
         sp.setFill(Color.TRANSPARENT);                      // keep transparent background
-        WritableImage img = overlay.snapshot(sp, null);     // snapshot only what’s on the overlay
-        clearOverlay();                                     // wipe overlay after capture
-        base.getGraphicsContext2D().drawImage(img, 0, 0);   // composite onto base
+        for (int py = y0; py < y1; py += MAX_OVERLAY) {
+            for (int px = x0; px < x1; px += MAX_OVERLAY) {
+                Canvas scratch = new Canvas(Math.min(MAX_OVERLAY, x1 - px), Math.min(MAX_OVERLAY, y1 - py));
+                GraphicsContext g = scratch.getGraphicsContext2D();
+                g.setTransform(1, 0, 0, 1, -px, -py);      // document coords → scratch pixels
+                draw.accept(g);
+                document.drawImage(scratch.snapshot(sp, null), px, py);
+            }
+        }
+        invalidate(x0, y0, x1 - x0, y1 - y0);
     }
 
-    /** Fully transparent clear of the base canvas. */
+    /** Fully transparent clear of the active layer. */
     public void clearBaseTransparent(){
-        base.getGraphicsContext2D().clearRect(0,0,base.getWidth(), base.getHeight());
+        getDocument().clear();
+        invalidateAll();
     }
 
     /** Kept for compatibility if you ever want a colored fill. */
     public void clearBase(Color c){
-        GraphicsContext g = base.getGraphicsContext2D();
-        g.setFill(c);
-        g.fillRect(0,0,base.getWidth(), base.getHeight());
+        getDocument().fillRect(0, 0, layers.getWidth(), layers.getHeight(), ColorUtils.argb(c));
+        invalidateAll();
+    }
+
+    // ---------- Document -> display ----------
+    /**
+     * Mark a rectangle of the active layer as changed (call after writing pixels).
+     * Only the composite tiles it covers are recomputed; display uploads are
+     * coalesced and flushed once per pulse.
+     */
+    public void invalidate(int x, int y, int w, int h) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(layers.getWidth(), x + w), y1 = Math.min(layers.getHeight(), y + h);
+        if (x1 <= x0 || y1 <= y0) return;
+        edits++;
+        layers.markDirty(x0, y0, x1 - x0, y1 - y0);
+        mips.markDirty(x0, y0, x1 - x0, y1 - y0);
+        regions.invalidate(x0, y0, x1 - x0, y1 - y0);
+        histogram.markDirty(x0, y0, x1 - x0, y1 - y0);
+        boolean wasClean = displayDirty.isEmpty();
+        displayDirty.add(x0, y0, x1 - x0, y1 - y0);
+        if (wasClean) displayFlusher.start();
+    }
+
+    public void invalidateAll() {
+        invalidate(0, 0, layers.getWidth(), layers.getHeight());
     }
 
+    /**
+     * Upload the pending dirty rects of the composite to the shown tile views. Runs once per
+     * pulse; parked views are only flagged and re-rendered if they come back into view.
+     */
+    private void flushDisplay() {
+        displayFlusher.stop();
+        if (displayDirty.isEmpty()) return;
+        int W = layers.getWidth(), H = layers.getHeight(), span = viewSpan(), cols = viewCols();
+        for (int[] r : displayDirty.getRects()) {
+            int x0 = Math.max(0, r[0]), y0 = Math.max(0, r[1]);
+            int x1 = Math.min(W, r[0] + r[2]);
+            int y1 = Math.min(H, r[1] + r[3]);
+            if (x1 <= x0 || y1 <= y0) continue;
+            for (int ty = y0 / span; ty <= (y1 - 1) / span; ty++) {
+                for (int tx = x0 / span; tx <= (x1 - 1) / span; tx++) {
+                    int i = ty * cols + tx;
+                    if (!isShown(tx, ty)) {
+                        if (tileViews[i] != null) staleViews[i] = true;
+                        continue;
+                    }
+                    int ix0 = Math.max(x0, tx * span), iy0 = Math.max(y0, ty * span);
+                    int ix1 = Math.min(x1, (tx + 1) * span), iy1 = Math.min(y1, (ty + 1) * span);
+                    uploadTile(i, ix0, iy0, ix1 - ix0, iy1 - iy0);
+                }
+            }
+        }
+        displayDirty.clear();
+    }
+
+    /**
+     * Refresh the part of one tile view covering a document rectangle; views are created for
+     * painted tiles and dropped for empty ones. Zoomed out, pixels come from the mip level
+     * and the view is stretched back to document size.
+     */
+    private void uploadTile(int i, int x, int y, int w, int h) {
+        ImageView v = tileViews[i];
+        int level = viewLevel, span = viewSpan(), cols = viewCols();
+        int tx = i % cols, ty = i / cols;
+        boolean empty = level == 0 ? !layers.isCompositeTileAllocated(i) : !mips.isAllocated(level, tx, ty);
+        if (empty) {
+            if (v != null) { tiles.getChildren().remove(v); parked.remove(i); tileViews[i] = null; }
+            return;
+        }
+        int tx0 = tx * span, ty0 = ty * span;
+        if (v == null) {
+            int sw = Math.min(span, layers.getWidth() - tx0), sh = Math.min(span, layers.getHeight() - ty0);
+            int tw = levelSize(sw), th = levelSize(sh);
+            v = new ImageView(new WritableImage(tw, th));
+            if (level > 0) { v.setFitWidth(tw << level); v.setFitHeight(th << level); }
+            v.setLayoutX(tx0);
+            v.setLayoutY(ty0);
+            tiles.getChildren().add(v);
+            tileViews[i] = v;
+            x = tx0; y = ty0; w = sw; h = sh;              // a new view needs the whole tile
+        }
+        // image pixels covering the document rect
+        int px = (x - tx0) >> level, py = (y - ty0) >> level;
+        int pw = levelSize(x + w - tx0) - px, ph = levelSize(y + h - ty0) - py;
+        if (level == 0) layers.readComposite(x, y, w, h, uploadBuf, 0, w);
+        else mips.read(level, tx, ty, px, py, pw, ph, uploadBuf, 0, pw);
+        ((WritableImage) v.getImage()).getPixelWriter()
+                .setPixels(px, py, pw, ph, PixelFormat.getIntArgbInstance(), uploadBuf, 0, pw);
+    }
+
+    /** Open an image as a new single-layer document of exactly the image's size. */
     public void openImage(File f){
         var img = new Image(f.toURI().toString());
-        clearBaseTransparent();                      // keep transparent outside the image
-        base.getGraphicsContext2D().drawImage(img, 0, 0);
+        if (img.isError() || img.getWidth() <= 0) { setStatus("Could not open " + f.getName()); return; }
+        fixedSize = true;
+        layers.reset();
+        clearOverlay();
+        setDocumentSize((int) img.getWidth(), (int) img.getHeight());
+        getDocument().writeImage(img, 0, 0);         // copied band by band, alpha kept
+        invalidateAll();
     }
 
     public void saveImage(File f){
-        // snapshot with TRANSPARENT fill (critical)
-        SnapshotParameters sp = new SnapshotParameters();
-        sp.setFill(Color.TRANSPARENT);
-        var snap = base.snapshot(sp, null);
-
+        // flattened layers streamed from the composite cache (keeps alpha, no full-size copy)
         try {
             String name = f.getName().toLowerCase();
             String fmt = (name.endsWith(".jpg")||name.endsWith(".jpeg")) ? "jpg" : "png";
             // NOTE: JPEG does not support alpha; PNG will preserve transparency.
-            ImageIO.write(SwingFXUtils.fromFXImage(snap, null), fmt, f);
+            ImageIO.write(new CompositeImage(layers), fmt, f);
         } catch (IOException ex) { ex.printStackTrace(); }
     }
 
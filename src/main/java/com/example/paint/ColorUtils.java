@@ -10,4 +10,26 @@ public class ColorUtils {
         int b = (int)Math.round(c.getBlue()*255)&0xFF;
         return (a<<24)|(r<<16)|(g<<8)|b;
     }
+
+    public static Color color(int argb){
+        return Color.rgb((argb>>>16)&0xFF, (argb>>>8)&0xFF, argb&0xFF, ((argb>>>24)&0xFF)/255.0);
+    }
+
+    /** Source-over of two non-premultiplied ARGB pixels. */
+    public static int blendOver(int dst, int src){
+        int sa = src>>>24;
+        if (sa == 255) return src;
+        if (sa == 0) return dst;
+        int da = dst>>>24;
+        if (da == 0) return src;
+
+        // out alpha in 0..255*255 to keep precision
+        int oa = sa*255 + da*(255 - sa);
+        int dw = da*(255 - sa);
+        int r = (((src>>>16)&0xFF)*sa*255 + ((dst>>>16)&0xFF)*dw + oa/2) / oa;
+        int g = (((src>>>8)&0xFF)*sa*255  + ((dst>>>8)&0xFF)*dw  + oa/2) / oa;
+        int b = ((src&0xFF)*sa*255        + (dst&0xFF)*dw        + oa/2) / oa;
+        int a = (oa + 127) / 255;
+        return (a<<24)|(r<<16)|(g<<8)|b;
+    }
 }
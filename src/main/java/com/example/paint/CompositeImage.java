@@ -0,0 +1,92 @@
+package com.example.paint;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * Read-only {@link RenderedImage} view of the flattened layers for ImageIO.
+ * Pixels are produced on demand, one requested region at a time (the PNG writer asks for
+ * a row at a time), so saving never builds a full-size copy of the document.
+ */
+class CompositeImage implements RenderedImage {
+    private static final int T = RasterDocument.TILE_SIZE;
+
+    private final LayerStack layers;
+    private final int width, height;
+    // packed int ARGB, non-premultiplied: the document's own layout
+    private final ColorModel cm = ColorModel.getRGBdefault();
+
+    CompositeImage(LayerStack layers) {
+        this.layers = layers;
+        this.width = layers.getWidth();
+        this.height = layers.getHeight();
+    }
+
+    @Override public Vector<RenderedImage> getSources() { return null; }
+    @Override public Object getProperty(String name) { return java.awt.Image.UndefinedProperty; }
+    @Override public String[] getPropertyNames() { return null; }
+    @Override public ColorModel getColorModel() { return cm; }
+    @Override public SampleModel getSampleModel() { return cm.createCompatibleSampleModel(T, T); }
+    @Override public int getWidth() { return width; }
+    @Override public int getHeight() { return height; }
+    @Override public int getMinX() { return 0; }
+    @Override public int getMinY() { return 0; }
+    @Override public int getNumXTiles() { return (width + T - 1) / T; }
+    @Override public int getNumYTiles() { return (height + T - 1) / T; }
+    @Override public int getMinTileX() { return 0; }
+    @Override public int getMinTileY() { return 0; }
+    @Override public int getTileWidth() { return T; }
+    @Override public int getTileHeight() { return T; }
+    @Override public int getTileGridXOffset() { return 0; }
+    @Override public int getTileGridYOffset() { return 0; }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return getData(new Rectangle(tileX * T, tileY * T, T, T));
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        Rectangle r = rect.intersection(new Rectangle(0, 0, width, height));
+        WritableRaster out = cm.createCompatibleWritableRaster(Math.max(1, r.width), Math.max(1, r.height));
+        if (!r.isEmpty()) fill(out, r);
+        return out.createWritableTranslatedChild(r.x, r.y);
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        Rectangle r = raster == null
+                ? new Rectangle(0, 0, width, height)
+                : raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (raster == null) raster = cm.createCompatibleWritableRaster(width, height);
+        if (r.isEmpty()) return raster;
+        int[] band = new int[r.width * Math.min(T, r.height)];
+        for (int y = r.y; y < r.y + r.height; y += T) {
+            int bh = Math.min(T, r.y + r.height - y);
+            layers.readComposite(r.x, y, r.width, bh, band, 0, r.width);
+            raster.setDataElements(r.x, y, r.width, bh, band); // raster coordinates are absolute
+        }
+        return raster;
+    }
+
+    /** Fill a raster whose (0,0) corresponds to r's top-left, one tile row at a time. */
+    private void fill(WritableRaster out, Rectangle r) {
+        int[] band = new int[r.width * Math.min(T, r.height)];
+        for (int y = 0; y < r.height; y += T) {
+            int bh = Math.min(T, r.height - y);
+            layers.readComposite(r.x, r.y + y, r.width, bh, band, 0, r.width);
+            out.setDataElements(0, y, r.width, bh, band);
+        }
+    }
+}
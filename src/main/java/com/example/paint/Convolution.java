@@ -0,0 +1,292 @@
+package com.example.paint;
+
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Spatial filters on the tiled document: Gaussian blur, unsharp mask and edge detection.
+ * - Every filter is separable: a pass along rows, then one along columns
+ * - The Gaussian is three box blurs, each a running sum, so the cost per pixel is the same
+ *   for any radius
+ * - Work is split into blocks of 2x2 tiles on the ForkJoin common pool. A block reads its
+ *   source from a copy-on-write snapshot with a halo as wide as the filter reaches and writes
+ *   only its own tiles, so blocks never wait on each other
+ * - Blocks with no painted tile within reach are skipped (they stay transparent)
+ * - With an {@link Effects.Area} only the area is computed and written (halo still read
+ *   around it), and a masked area writes only its masked runs
+ * - Colours are blurred premultiplied by alpha so transparent pixels do not bleed dark fringes;
+ *   pixels past the document edge repeat the edge pixel
+ * - A run can be stopped between blocks through its cancelled check (background renders)
+ */
+final class Convolution {
+    private static final int T = RasterDocument.TILE_SIZE, BLOCK = 2 * T;
+    /** Largest blur radius offered (the halo is about this wide). */
+    static final int MAX_RADIUS = 200;
+
+    private Convolution() { }
+
+    /** Filter one block: src is the block plus halo (sw×sh, straight ARGB), out receives bw×bh. */
+    private interface BlockOp { void run(int[] src, int sw, int sh, int halo, int[] out, int bw, int bh); }
+
+    // ---------- Filters ----------
+    /** Gaussian blur reaching about radius pixels (sigma = radius / 3); area null = whole layer. */
+    static void gaussian(RasterDocument doc, int radius, Effects.Area area, BooleanSupplier cancelled) {
+        int[] boxes = boxRadii(radius);
+        if (boxes == null) return;
+        run(doc, area, cancelled, boxes[0] + boxes[1] + boxes[2], (src, sw, sh, halo, out, bw, bh) -> {
+            int[] a = premultiply(src), b = new int[a.length];
+            int[] blurred = blur(a, b, sw, sh, boxes, bw, bh);
+            copyCentre(blurred, sw, halo, out, bw, bh);
+            for (int i = 0; i < out.length; i++) out[i] = unpremultiply(out[i]);
+        });
+    }
+
+    /**
+     * Unsharp mask: push every channel away from its blurred value by amount (1 = double the
+     * local contrast). Differences below threshold (0..255) are left alone so noise is not
+     * sharpened. Alpha is kept.
+     */
+    static void unsharp(RasterDocument doc, int radius, double amount, int threshold, Effects.Area area,
+                        BooleanSupplier cancelled) {
+        int[] boxes = boxRadii(radius);
+        if (boxes == null || amount <= 0) return;
+        int k = (int) Math.round(amount * 256);
+        run(doc, area, cancelled, boxes[0] + boxes[1] + boxes[2], (src, sw, sh, halo, out, bw, bh) -> {
+            int[] a = premultiply(src), b = new int[a.length];
+            int[] blurred = blur(a, b, sw, sh, boxes, bw, bh);
+            for (int y = 0; y < bh; y++) {
+                for (int x = 0; x < bw; x++) {
+                    int i = (y + halo) * sw + x + halo;
+                    int p = src[i], q = unpremultiply(blurred[i]);
+                    if ((p >>> 24) == 0) { out[y * bw + x] = p; continue; }
+                    int r = sharpen((p >>> 16) & 0xFF, (q >>> 16) & 0xFF, k, threshold);
+                    int g = sharpen((p >>> 8) & 0xFF, (q >>> 8) & 0xFF, k, threshold);
+                    int bl = sharpen(p & 0xFF, q & 0xFF, k, threshold);
+                    out[y * bw + x] = (p & 0xFF000000) | (r << 16) | (g << 8) | bl;
+                }
+            }
+        });
+    }
+
+    /**
+     * Sobel edge detection per channel: bright where the colour changes, dark on flat areas.
+     * Alpha is kept; fully transparent pixels stay 0.
+     */
+    static void edges(RasterDocument doc, Effects.Area area, BooleanSupplier cancelled) {
+        run(doc, area, cancelled, 1, (src, sw, sh, halo, out, bw, bh) -> {
+            // vertical pass: smooth [1 2 1] and derivative [-1 0 1], 3 channels, columns -1..bw
+            int n = bw + 2;
+            int[] smooth = new int[3 * n], deriv = new int[3 * n];
+            for (int y = 0; y < bh; y++) {
+                int up = y * sw, mid = up + sw, down = mid + sw;      // halo is 1: rows y-1, y, y+1
+                for (int x = 0; x < n; x++) {
+                    for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+                        int a = (src[up + x] >>> shift) & 0xFF, m = (src[mid + x] >>> shift) & 0xFF,
+                            d = (src[down + x] >>> shift) & 0xFF;
+                        smooth[c * n + x] = a + 2 * m + d;
+                        deriv[c * n + x] = d - a;
+                    }
+                }
+                // horizontal pass: derivative of the smoothed columns, smoothing of the derivatives
+                for (int x = 0; x < bw; x++) {
+                    int alpha = src[mid + x + 1] & 0xFF000000;
+                    if (alpha == 0) { out[y * bw + x] = 0; continue; }   // keep empty pixels empty
+                    int rgb = 0;
+                    for (int c = 0; c < 3; c++) {
+                        int o = c * n + x;
+                        int gx = smooth[o + 2] - smooth[o];
+                        int gy = deriv[o] + 2 * deriv[o + 1] + deriv[o + 2];
+                        int v = Math.min(255, (int) Math.sqrt(gx * gx + gy * gy));
+                        rgb = (rgb << 8) | v;
+                    }
+                    out[y * bw + x] = alpha | rgb;
+                }
+            }
+        });
+    }
+
+    // ---------- Block driver ----------
+    /**
+     * Run op over the area (null = whole document) block by block. Blocks stay on the tile-aligned
+     * grid, clipped to the area, so concurrent blocks never write the same tile. Once cancelled
+     * reports true the remaining blocks are skipped and doc is left part-filtered.
+     */
+    private static void run(RasterDocument doc, Effects.Area area, BooleanSupplier cancelled, int halo, BlockOp op) {
+        if (area != null && area.isEmpty()) return;
+        RasterDocument src = new RasterDocument(doc.snapshot());  // frozen input; doc takes the output
+        int ax = area == null ? 0 : area.x(), ay = area == null ? 0 : area.y();
+        int ax1 = area == null ? doc.getWidth() : ax + area.w(), ay1 = area == null ? doc.getHeight() : ay + area.h();
+        int bc0 = ax / BLOCK, br0 = ay / BLOCK;
+        int bcols = (ax1 + BLOCK - 1) / BLOCK - bc0, brows = (ay1 + BLOCK - 1) / BLOCK - br0;
+        IntStream.range(0, bcols * brows).parallel().forEach(b -> {
+            int bx = Math.max(ax, (bc0 + b % bcols) * BLOCK), by = Math.max(ay, (br0 + b / bcols) * BLOCK);
+            int bw = Math.min((bc0 + b % bcols + 1) * BLOCK, ax1) - bx, bh = Math.min((br0 + b / bcols + 1) * BLOCK, ay1) - by;
+            if (cancelled.getAsBoolean()) return;
+            if (!anyPainted(src, bx - halo, by - halo, bw + 2 * halo, bh + 2 * halo)) return;
+            int sw = bw + 2 * halo, sh = bh + 2 * halo;
+            int[] buf = new int[sw * sh];
+            readClamped(src, bx - halo, by - halo, sw, sh, buf);
+            int[] out = new int[bw * bh];
+            op.run(buf, sw, sh, halo, out, bw, bh);
+            if (area == null || area.mask() == null) store(doc, bx, by, bw, bh, out);
+            else storeMasked(doc, area, bx, by, bw, bh, out);
+        });
+    }
+
+    private static boolean anyPainted(RasterDocument d, int x, int y, int w, int h) {
+        int tx0 = Math.max(0, x / T), ty0 = Math.max(0, y / T);
+        int tx1 = Math.min(d.getTileCols() - 1, (x + w - 1) / T), ty1 = Math.min(d.getTileRows() - 1, (y + h - 1) / T);
+        for (int ty = ty0; ty <= ty1; ty++)
+            for (int tx = tx0; tx <= tx1; tx++) if (d.isTileAllocated(ty * d.getTileCols() + tx)) return true;
+        return false;
+    }
+
+    /** Read a w×h window that may hang off the document; outside pixels repeat the nearest edge pixel. */
+    private static void readClamped(RasterDocument d, int x, int y, int w, int h, int[] buf) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(d.getWidth(), x + w), y1 = Math.min(d.getHeight(), y + h);
+        d.readPixels(x0, y0, x1 - x0, y1 - y0, buf, (y0 - y) * w + (x0 - x), w);
+        int left = x0 - x, right = x1 - x;                        // valid columns [left, right)
+        for (int r = y0 - y; r < y1 - y; r++) {
+            int row = r * w;
+            java.util.Arrays.fill(buf, row, row + left, buf[row + left]);
+            java.util.Arrays.fill(buf, row + right, row + w, buf[row + right - 1]);
+        }
+        for (int r = 0; r < y0 - y; r++) System.arraycopy(buf, (y0 - y) * w, buf, r * w, w);
+        for (int r = y1 - y; r < h; r++) System.arraycopy(buf, (y1 - y - 1) * w, buf, r * w, w);
+    }
+
+    /** Write a block back tile by tile; all-transparent tiles are released instead. */
+    private static void store(RasterDocument doc, int bx, int by, int bw, int bh, int[] out) {
+        for (int ty = 0; ty < bh; ty += T) {
+            for (int tx = 0; tx < bw; tx += T) {
+                int w = Math.min(T, bw - tx), h = Math.min(T, bh - ty);
+                boolean empty = true;
+                for (int r = 0; r < h && empty; r++) {
+                    for (int i = (ty + r) * bw + tx, end = i + w; i < end; i++) if (out[i] != 0) { empty = false; break; }
+                }
+                if (empty) doc.fillRect(bx + tx, by + ty, w, h, 0);
+                else doc.writePixels(bx + tx, by + ty, w, h, out, ty * bw + tx, bw);
+            }
+        }
+    }
+
+    /** Write only the block's pixels that are in the area's mask, one run at a time. */
+    private static void storeMasked(RasterDocument doc, Effects.Area area, int bx, int by, int bw, int bh, int[] out) {
+        RegionMask m = area.mask();
+        int lx = bx - area.x(), end = lx + bw;                    // block columns in mask coordinates
+        for (int r = 0; r < bh; r++) {
+            int my = by - area.y() + r;
+            for (int x = m.next(my, lx, end, true); x < end; ) {
+                int runEnd = m.next(my, x, end, false);
+                doc.writePixels(area.x() + x, by + r, runEnd - x, 1, out, r * bw + x - lx, bw);
+                x = m.next(my, runEnd, end, true);
+            }
+        }
+    }
+
+    private static void copyCentre(int[] src, int sw, int halo, int[] out, int bw, int bh) {
+        for (int y = 0; y < bh; y++) System.arraycopy(src, (y + halo) * sw + halo, out, y * bw, bw);
+    }
+
+    // ---------- Box blur ----------
+    /**
+     * Radii of three box blurs whose sequence approximates a Gaussian with sigma = radius / 3
+     * (widths chosen so the variances add up); null if there is nothing to blur.
+     */
+    static int[] boxRadii(int radius) {
+        radius = Math.min(MAX_RADIUS, radius);
+        if (radius <= 0) return null;
+        double sigma = Math.max(0.5, radius / 3.0);
+        int wl = (int) Math.floor(Math.sqrt(12 * sigma * sigma / 3 + 1));
+        if (wl % 2 == 0) wl--;
+        int m = (int) Math.round((12 * sigma * sigma - 3.0 * wl * wl - 12.0 * wl - 9) / (-4.0 * wl - 4));
+        int[] r = new int[3];
+        for (int i = 0; i < 3; i++) r[i] = ((i < m ? wl : wl + 2) - 1) / 2;
+        return r;
+    }
+
+    /**
+     * Three box passes along rows over the whole window, then three along the columns of the
+     * block only. Each pass leaves its radius of unusable border, which the halo pays for;
+     * radius-0 boxes (small sigmas) are skipped. Returns whichever of a, b holds the result
+     * (valid in the block's centre).
+     */
+    private static int[] blur(int[] a, int[] b, int sw, int sh, int[] radii, int bw, int bh) {
+        int halo = radii[0] + radii[1] + radii[2];
+        int edge = 0;
+        for (int r : radii) {
+            if (r == 0) continue;
+            edge += r;
+            box(a, b, 0, sh, sw, 1, edge, sw - edge, r);
+            int[] t = a; a = b; b = t;
+        }
+        edge = 0;
+        for (int r : radii) {
+            if (r == 0) continue;
+            edge += r;
+            box(a, b, halo, halo + bw, 1, sw, edge, sh - edge, r);
+            int[] t = a; a = b; b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Box average of radius r along lines [line0, line1): element i of a line is at
+     * line * lineStride + i * step. Positions [from, to) are written to b, reading r further.
+     */
+    private static void box(int[] a, int[] b, int line0, int line1, int lineStride, int step,
+                            int from, int to, int r) {
+        if (from >= to) return;
+        int width = 2 * r + 1, inv = ((1 << 16) + width / 2) / width;   // x / width ≈ (x * inv) >> 16
+        for (int line = line0; line < line1; line++) {
+            int base = line * lineStride;
+            int sa = 0, sr = 0, sg = 0, sb = 0;
+            for (int i = from - r, p = base + i * step; i <= from + r; i++, p += step) {
+                int v = a[p];
+                sa += v >>> 24; sr += (v >>> 16) & 0xFF; sg += (v >>> 8) & 0xFF; sb += v & 0xFF;
+            }
+            int out = base + from * step, add = out + (r + 1) * step, sub = out - r * step;
+            for (int i = from; i < to; i++, out += step, add += step, sub += step) {
+                b[out] = ((sa * inv + 32768) >>> 16) << 24 | ((sr * inv + 32768) >>> 16) << 16
+                       | ((sg * inv + 32768) >>> 16) << 8 | ((sb * inv + 32768) >>> 16);
+                if (i + 1 == to) break;
+                int va = a[add], vs = a[sub];
+                sa += (va >>> 24) - (vs >>> 24);
+                sr += ((va >>> 16) & 0xFF) - ((vs >>> 16) & 0xFF);
+                sg += ((va >>> 8) & 0xFF) - ((vs >>> 8) & 0xFF);
+                sb += (va & 0xFF) - (vs & 0xFF);
+            }
+        }
+    }
+
+    // ---------- Pixel helpers ----------
+    static int[] premultiply(int[] src) {
+        int[] out = new int[src.length];
+        for (int i = 0; i < src.length; i++) {
+            int p = src[i], a = p >>> 24;
+            if (a == 255) { out[i] = p; continue; }
+            if (a == 0) continue;
+            out[i] = a << 24 | ((((p >>> 16) & 0xFF) * a + 127) / 255) << 16
+                   | ((((p >>> 8) & 0xFF) * a + 127) / 255) << 8 | (((p & 0xFF) * a + 127) / 255);
+        }
+        return out;
+    }
+
+    static int unpremultiply(int p) {
+        int a = p >>> 24;
+        if (a == 255 || a == 0) return a == 0 ? 0 : p;
+        int half = a / 2;
+        int r = Math.min(255, (((p >>> 16) & 0xFF) * 255 + half) / a);
+        int g = Math.min(255, (((p >>> 8) & 0xFF) * 255 + half) / a);
+        int b = Math.min(255, ((p & 0xFF) * 255 + half) / a);
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    /** v + k/256 * (v - blurred), clamped, unless the difference is under threshold. */
+    private static int sharpen(int v, int blurred, int k, int threshold) {
+        int d = v - blurred;
+        if (Math.abs(d) < threshold) return v;
+        return Math.max(0, Math.min(255, v + ((d * k) >> 8)));
+    }
+}
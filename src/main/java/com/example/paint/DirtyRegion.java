@@ -0,0 +1,68 @@
+package com.example.paint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Union of integer rectangles, coalesced as they are added.
+ * Overlapping or nearly-adjacent rects are merged so the list stays short;
+ * past MAX_RECTS everything collapses into the bounding box.
+ */
+public class DirtyRegion {
+    private static final int MAX_RECTS = 32;
+    /** Merge two rects when their bounding box wastes at most this fraction of extra area. */
+    private static final double MERGE_SLACK = 0.5;
+
+    private final List<int[]> rects = new ArrayList<>(); // {x, y, w, h}
+
+    public boolean isEmpty() { return rects.isEmpty(); }
+
+    public void clear() { rects.clear(); }
+
+    /** Rects in this region; do not modify the arrays. */
+    public List<int[]> getRects() { return rects; }
+
+    public void add(int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) return;
+        int[] r = {x, y, w, h};
+        boolean merged = true;
+        while (merged) {                       // merging can make r swallow more rects
+            merged = false;
+            for (int i = rects.size() - 1; i >= 0; i--) {
+                int[] o = rects.get(i);
+                if (shouldMerge(r, o)) {
+                    r = union(r, o);
+                    rects.remove(i);
+                    merged = true;
+                }
+            }
+        }
+        rects.add(r);
+        if (rects.size() > MAX_RECTS) {
+            int[] b = getBounds();
+            rects.clear();
+            rects.add(b);
+        }
+    }
+
+    /** Bounding box of the whole region, or null when empty. */
+    private int[] getBounds() {
+        if (rects.isEmpty()) return null;
+        int[] b = rects.get(0).clone();
+        for (int[] r : rects) b = union(b, r);
+        return b;
+    }
+
+    private static boolean shouldMerge(int[] a, int[] b) {
+        int[] u = union(a, b);
+        double ua = (double) u[2] * u[3];
+        double sum = (double) a[2] * a[3] + (double) b[2] * b[3];
+        return ua <= sum * (1 + MERGE_SLACK);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int x0 = Math.min(a[0], b[0]), y0 = Math.min(a[1], b[1]);
+        int x1 = Math.max(a[0] + a[2], b[0] + b[2]), y1 = Math.max(a[1] + a[3], b[1] + b[3]);
+        return new int[]{x0, y0, x1 - x0, y1 - y0};
+    }
+}
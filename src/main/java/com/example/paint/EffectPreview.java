@@ -0,0 +1,225 @@
+package com.example.paint;
+
+import javafx.application.Platform;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Live preview of an effect while its settings are tuned; the layer is untouched until commit.
+ * - Every change is shown at once from a downsampled copy of the visible part of the layer
+ *   (at most PREVIEW_SIZE pixels across), filtered and drawn scaled up on the overlay
+ * - The overlay sits above every layer, so what it shows is the whole stack flattened with the
+ *   filtered pixels in place of the layer's: its opacity and blend mode, adjustment layers and
+ *   the layers above all apply, as they will once the result is committed
+ * - Meanwhile the full-resolution result renders on a background thread into a copy-on-write
+ *   copy of the layer. A newer change cancels it and starts over; when one finishes, its
+ *   visible part replaces the coarse preview (if the zoom shows the difference)
+ * - commit() swaps the finished render into the layer and pushes one history command; if the
+ *   render is still running, that happens as soon as it lands. Should the layer have changed
+ *   in the meantime, the effect is run again on the current pixels instead
+ */
+final class EffectPreview {
+    private static final int PREVIEW_SIZE = 512;
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "effect-render");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** One full-resolution render; result is set on the FX thread once it lands. */
+    private static final class Job {
+        volatile boolean cancelled;
+        RasterDocument result;
+    }
+
+    private final CanvasState s;
+    private final HistoryManager h;
+    private final RasterDocument doc;
+    private final RasterDocument.Snapshot source;  // the layer as it was when the preview opened
+    private final Effects.Area area;
+    private final long editsAtStart;
+
+    // Visible part of the layer (doc coords) and its coarse copy
+    private final int rx, ry, rw, rh;
+    private final double lowScale, fullScale;      // preview copy and screen, relative to the layer
+    private final int[] lowBase;                   // unfiltered coarse copy
+    private final RasterDocument low;
+
+    private Effects.Filter filter;
+    private Job job;                               // latest render
+    private boolean committing, closed;
+
+    EffectPreview(CanvasState s, HistoryManager h) {
+        this.s = s;
+        this.h = h;
+        doc = s.getDocument();
+        source = doc.snapshot();
+        area = Effects.Area.of(s);
+        editsAtStart = s.getEditCount();
+
+        int[] v = s.visibleRect();
+        rx = v == null ? 0 : v[0];
+        ry = v == null ? 0 : v[1];
+        rw = v == null ? 0 : v[2] - v[0];
+        rh = v == null ? 0 : v[3] - v[1];
+        lowScale = rw == 0 ? 1 : Math.min(1, PREVIEW_SIZE / (double) Math.max(rw, rh));
+        fullScale = Math.min(1, s.getZoom());
+        if (rw == 0) {
+            lowBase = null;
+            low = null;
+        } else {
+            lowBase = sample(new RasterDocument(source), lowScale);
+            low = new RasterDocument(span(rw, lowScale), span(rh, lowScale));
+        }
+    }
+
+    /** Apply f to the active layer (or selection) off the FX thread: a coarse preview now, the result when ready. */
+    static void run(CanvasState s, HistoryManager h, Effects.Filter f) {
+        EffectPreview p = new EffectPreview(s, h);
+        p.update(f);
+        p.commit();
+    }
+
+    /** Show f: coarse preview immediately, full resolution in the background. */
+    void update(Effects.Filter f) {
+        if (closed || f.equals(filter)) return;
+        filter = f;
+        if (low != null) showLow();
+        render(f);
+    }
+
+    /** Keep the current filter; applied now, or when its render finishes. */
+    void commit() {
+        if (closed) return;
+        committing = true;
+        closed = true;
+        if (job == null) { s.clearOverlay(); return; }
+        if (job.result != null) bake();
+        else s.setStatus(filter.name() + "…");
+    }
+
+    /** Drop the preview; the layer was never touched. */
+    void cancel() {
+        if (closed) return;
+        closed = true;
+        if (job != null) job.cancelled = true;
+        s.clearOverlay();
+        Effects.afterEdit(s, area);
+    }
+
+    // ---------- preview ----------
+    private void showLow() {
+        int w = span(rw, lowScale), hh = span(rh, lowScale);
+        low.writePixels(0, 0, w, hh, lowBase, 0, w);
+        filter.scaled(lowScale).run(low, null, Effects.NEVER);
+        int[] px = new int[w * hh];
+        low.readPixels(0, 0, w, hh, px, 0, w);
+        unfilterOutside(px, lowScale);
+        show(px, lowScale);
+    }
+
+    private void render(Effects.Filter f) {
+        if (job != null) job.cancelled = true;
+        Job j = job = new Job();
+        boolean sharper = low != null && fullScale > lowScale;   // else the coarse preview is as fine as the screen
+        WORKER.submit(() -> {
+            if (j.cancelled) return;
+            RasterDocument copy = new RasterDocument(source);
+            f.run(copy, area, () -> j.cancelled);
+            if (j.cancelled) return;
+            int[] px = sharper ? sample(copy, fullScale) : null;   // filtered inside the area only
+            Platform.runLater(() -> finished(j, copy, px));
+        });
+    }
+
+    private void finished(Job j, RasterDocument copy, int[] px) {
+        if (j != job) return;
+        j.result = copy;
+        if (committing) { bake(); return; }
+        if (closed || px == null) return;
+        show(px, fullScale);
+    }
+
+    /**
+     * Draw the visible rect as the layers would flatten with px (the visible rect of the layer,
+     * sampled at scale) in place of the layer's pixels. The other layers are sampled row by row.
+     */
+    private void show(int[] px, double scale) {
+        int w = span(rw, scale), hh = span(rh, scale);
+        LayerStack layers = s.getLayers();
+        int n = layers.size();
+        int[][] rows = new int[n][];
+        int[] row = new int[rw], out = new int[w * hh], flat = new int[w];
+        for (int k = 0; k < n; k++) {
+            Layer l = layers.getLayer(k);
+            if (!l.isAdjustment() && !l.isHidden()) rows[k] = new int[w];   // the rest read no pixels
+        }
+        for (int j = 0; j < hh; j++) {
+            int y = ry + Math.min(rh - 1, (int) (j / scale));
+            for (int k = 0; k < n; k++) {
+                RasterDocument d = layers.getLayer(k).getDocument();
+                if (rows[k] == null) continue;
+                if (d == doc) { System.arraycopy(px, j * w, rows[k], 0, w); continue; }
+                d.readPixels(rx, y, rw, 1, row, 0, rw);
+                for (int i = 0; i < w; i++) rows[k][i] = row[Math.min(rw - 1, (int) (i / scale))];
+            }
+            layers.flatten(rows, w, flat);
+            System.arraycopy(flat, 0, out, j * w, w);
+        }
+        s.clearOverlay();
+        s.getOverlay().getGraphicsContext2D().drawImage(MagicWandTool.toImage(out, w, hh), rx, ry, rw, rh);
+    }
+
+    // ---------- commit ----------
+    private void bake() {
+        s.clearOverlay();
+        if (s.getDocument() != doc || s.getEditCount() != editsAtStart) {
+            Effects.apply(s, h, filter);           // pixels moved on since the render started
+        } else {
+            if (area == null) {
+                int T = RasterDocument.TILE_SIZE, cols = doc.getTileCols();
+                for (int i : doc.restore(job.result.snapshot()))
+                    s.invalidate((i % cols) * T, (i / cols) * T, T, T);
+            } else if (!area.isEmpty()) {
+                int[] buf = new int[area.w() * area.h()];
+                job.result.readPixels(area.x(), area.y(), area.w(), area.h(), buf, 0, area.w());
+                area.write(doc, buf);
+                Effects.invalidate(s, area);
+            }
+            h.push(filter.command(area));
+            Effects.afterEdit(s, area);
+        }
+        job = null;
+        s.setStatus(filter.name() + " applied");
+    }
+
+    // ---------- helpers ----------
+    private static int span(int n, double scale) { return Math.max(1, (int) Math.ceil(n * scale)); }
+
+    /** The visible rect of d, nearest-sampled at scale. */
+    private int[] sample(RasterDocument d, double scale) {
+        int w = span(rw, scale), hh = span(rh, scale);
+        int[] px = new int[w * hh], row = new int[rw];
+        for (int j = 0; j < hh; j++) {
+            d.readPixels(rx, ry + Math.min(rh - 1, (int) (j / scale)), rw, 1, row, 0, rw);
+            for (int i = 0; i < w; i++) px[j * w + i] = row[Math.min(rw - 1, (int) (i / scale))];
+        }
+        return px;
+    }
+
+    /** Put back the unfiltered pixels of a coarse buffer (filtered whole) that fall outside the area. */
+    private void unfilterOutside(int[] px, double scale) {
+        if (area == null) return;
+        int w = span(rw, scale), hh = span(rh, scale);
+        RegionMask m = area.mask();
+        for (int j = 0; j < hh; j++) {
+            int y = ry + Math.min(rh - 1, (int) (j / scale)) - area.y();
+            for (int i = 0; i < w; i++) {
+                int x = rx + Math.min(rw - 1, (int) (i / scale)) - area.x();
+                boolean in = x >= 0 && y >= 0 && x < area.w() && y < area.h() && (m == null || m.contains(x, y));
+                if (!in) px[j * w + i] = lowBase[j * w + i];
+            }
+        }
+    }
+}
@@ -1,42 +1,274 @@
 package com.example.paint;
 
-import javafx.scene.effect.ColorAdjust;
-import javafx.scene.image.ImageView;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
+/**
+ * Destructive effects on the active layer, each recorded as one history command.
+ * With an active selection they touch only the selection: its rectangle, narrowed to the
+ * selected pixels when the selection has a mask (see {@link Area}).
+ * Each effect with its settings is a {@link Filter}; {@link EffectPreview} renders one off the
+ * layer while its settings are tuned, and the apply methods here run it in place.
+ */
 public class Effects {
-    public static void applyGray(CanvasState s, HistoryManager h){
-        h.push();
-        bakeAdjust(s, ca -> ca.setSaturation(-1));
-    }
-    public static void applyBrightness(CanvasState s, HistoryManager h, double delta){
-        h.push();
-        bakeAdjust(s, ca -> ca.setBrightness(Math.max(-1, Math.min(1, ca.getBrightness()+delta))));
-    }
-    public static void applyInvert(CanvasState s, HistoryManager h){
-        h.push();
-        var img = s.getBase().snapshot(null,null);
-        var out = new WritableImage((int)img.getWidth(), (int)img.getHeight());
-        PixelReader pr = img.getPixelReader();
-        PixelWriter pw = out.getPixelWriter();
-        for (int y=0;y<img.getHeight();y++){
-            for (int x=0;x<img.getWidth();x++){
-                Color c = pr.getColor(x,y);
-                pw.setColor(x,y, new Color(1-c.getRed(), 1-c.getGreen(), 1-c.getBlue(), c.getOpacity()));
-            }
+    static final BooleanSupplier NEVER = () -> false;
+
+    /** Run f on the active layer (just the selection, if any) as one history step. */
+    public static void apply(CanvasState s, HistoryManager h, Filter f){
+        Area a = Area.of(s);
+        f.run(s.getDocument(), a, NEVER);
+        invalidate(s, a);
+        h.push(f.command(a));
+        afterEdit(s, a);
+    }
+    public static void applyGray(CanvasState s, HistoryManager h){ apply(s, h, gray()); }
+    public static void applyBrightness(CanvasState s, HistoryManager h, double delta){ apply(s, h, brightness(delta)); }
+    public static void applyInvert(CanvasState s, HistoryManager h){ apply(s, h, invert()); }
+    public static void applyBlur(CanvasState s, HistoryManager h, int radius){ apply(s, h, blur(radius)); }
+    public static void applySharpen(CanvasState s, HistoryManager h, int radius, double amount, int threshold){
+        apply(s, h, sharpen(radius, amount, threshold));
+    }
+    public static void applyEdges(CanvasState s, HistoryManager h){ apply(s, h, edges()); }
+
+    // ---------- filters ----------
+    /** An effect with its settings, runnable on any document: the layer, or a copy of it. */
+    public interface Filter {
+        /** Apply to doc within area (null = all of it); spatial filters stop early once cancelled is true. */
+        void run(RasterDocument doc, Area area, BooleanSupplier cancelled);
+        /** The same look on a copy of the image scaled by f (radii shrink with it). */
+        default Filter scaled(double f) { return this; }
+        /** The history record of this filter applied to area. */
+        HistoryCommand command(Area area);
+        String name();
+    }
+
+    public static Filter gray(){ return new PointFilter("Grayscale", GRAY, Gray::new); }
+    public static Filter invert(){ return new PointFilter("Invert", INVERT, Invert::new); }
+    public static Filter brightness(double delta){
+        return new PointFilter("Brightness", brightnessKernel(delta), a -> new Brightness(delta, a));
+    }
+    /** Any tonal adjustment compiled to a table (levels, curves, contrast, gamma; see ToneLut). */
+    public static Filter tone(String name, ToneLut lut){
+        return new PointFilter(name, lut.kernel(), a -> new Tone(name, lut, a));
+    }
+    /**
+     * Stretch each channel so its darkest and lightest AUTO_CLIP of pixels reach 0 and 255.
+     * Reads the layer's histogram, or counts the selected pixels when there is a selection.
+     */
+    public static Filter autoLevels(CanvasState s){
+        long[] c = histogramOf(s);
+        ToneLut lut = ToneLut.IDENTITY;
+        ToneLut.Channel[] out = {ToneLut.Channel.RED, ToneLut.Channel.GREEN, ToneLut.Channel.BLUE};
+        Histogram.Channel[] in = {Histogram.Channel.RED, Histogram.Channel.GREEN, Histogram.Channel.BLUE};
+        for (int i = 0; i < 3; i++) lut = lut.then(stretch(c, in[i], out[i]));
+        return tone("Auto levels", lut);
+    }
+
+    /** The same stretch on all channels, taken from luminance, so colours keep their balance. */
+    public static Filter autoContrast(CanvasState s){
+        return tone("Auto contrast", stretch(histogramOf(s), Histogram.Channel.LUMINANCE, ToneLut.Channel.RGB));
+    }
+
+    public static Filter blur(int radius){ return new BlurFilter(radius); }
+    public static Filter sharpen(int radius, double amount, int threshold){ return new SharpenFilter(radius, amount, threshold); }
+    public static Filter edges(){ return new EdgesFilter(); }
+
+    // Bulk kernels over the painted tiles only (transparent tiles stay unallocated); big
+    // documents run in parallel. Gray and brightness follow ColorAdjust's HSB math, which
+    // these used to be baked with.
+    private record PointFilter(String name, PixelKernel kernel, Function<Area, HistoryCommand> record) implements Filter {
+        @Override public void run(RasterDocument doc, Area a, BooleanSupplier cancelled) { point(doc, kernel, a); }
+        @Override public HistoryCommand command(Area a) { return record.apply(a); }
+    }
+
+    // Spatial filters: see Convolution (separable, tile blocks with a halo, in parallel)
+    private record BlurFilter(int radius) implements Filter {
+        @Override public void run(RasterDocument doc, Area a, BooleanSupplier cancelled) {
+            Convolution.gaussian(doc, radius, a, cancelled);
+        }
+        @Override public Filter scaled(double f) { return new BlurFilter((int) Math.round(radius * f)); }
+        @Override public HistoryCommand command(Area a) { return new Blur(radius, a); }
+        @Override public String name() { return "Gaussian blur"; }
+    }
+    private record SharpenFilter(int radius, double amount, int threshold) implements Filter {
+        @Override public void run(RasterDocument doc, Area a, BooleanSupplier cancelled) {
+            Convolution.unsharp(doc, radius, amount, threshold, a, cancelled);
+        }
+        @Override public Filter scaled(double f) {
+            return new SharpenFilter(Math.max(1, (int) Math.round(radius * f)), amount, threshold);
+        }
+        @Override public HistoryCommand command(Area a) { return new Sharpen(radius, amount, threshold, a); }
+        @Override public String name() { return "Unsharp mask"; }
+    }
+    private record EdgesFilter() implements Filter {
+        @Override public void run(RasterDocument doc, Area a, BooleanSupplier cancelled) {
+            Convolution.edges(doc, a, cancelled);
+        }
+        @Override public HistoryCommand command(Area a) { return new Edges(a); }
+        @Override public String name() { return "Edge detect"; }
+    }
+
+    // ---------- area ----------
+    /**
+     * The part of the layer an effect may change: a rectangle, and optionally a mask in the
+     * rectangle's own coordinates (mask.width == w). Holds only the selected region, so the
+     * history entry does not grow with the canvas. null everywhere means the whole layer.
+     */
+    public record Area(int x, int y, int w, int h, RegionMask mask) {
+
+        /** The active selection clipped to the document, or null if there is none. */
+        static Area of(CanvasState s) {
+            if (s.getSelection() == null) return null;
+            RasterDocument doc = s.getDocument();
+            int x0 = Math.max(0, (int) s.getSelX()), y0 = Math.max(0, (int) s.getSelY());
+            int x1 = Math.min(doc.getWidth(), (int) s.getSelX() + (int) s.getSelection().getWidth());
+            int y1 = Math.min(doc.getHeight(), (int) s.getSelY() + (int) s.getSelection().getHeight());
+            if (x1 <= x0 || y1 <= y0) return new Area(0, 0, 0, 0, null);
+            RegionMask m = s.getSelectionMask();
+            return new Area(x0, y0, x1 - x0, y1 - y0, m == null ? null : m.crop(x0, y0, x1 - x0, y1 - y0));
+        }
+
+        boolean isEmpty() { return w <= 0 || h <= 0; }
+
+        /** Write a w×h buffer back: the whole rectangle, or only the masked runs. */
+        void write(RasterDocument doc, int[] buf) {
+            if (mask == null) { doc.writePixels(x, y, w, h, buf, 0, w); return; }
+            mask.forEachRun((yy, a, b) -> doc.writePixels(x + a, y + yy, b - a + 1, 1, buf, yy * w + a, w));
         }
-        s.getBase().getGraphicsContext2D().drawImage(out, 0, 0);
+
+        static long bytes(Area a) { return 64 + (a == null || a.mask == null ? 0 : 8L * a.mask.bits.length); }
+    }
+
+    // ---------- history commands ----------
+    public record Gray(Area area) implements HistoryCommand {
+        @Override public void apply(CanvasState s) { replay(s, gray(), area); }
+        @Override public long estimatedBytes() { return Area.bytes(area); }
+    }
+    public record Brightness(double delta, Area area) implements HistoryCommand {
+        @Override public void apply(CanvasState s) { replay(s, brightness(delta), area); }
+        @Override public long estimatedBytes() { return Area.bytes(area); }
+    }
+    public record Tone(String name, ToneLut lut, Area area) implements HistoryCommand {
+        @Override public void apply(CanvasState s) { replay(s, tone(name, lut), area); }
+        @Override public long estimatedBytes() { return Area.bytes(area) + 3 * 256 * 4; }
+    }
+    public record Invert(Area area) implements HistoryCommand {
+        @Override public void apply(CanvasState s) { replay(s, invert(), area); }
+        @Override public long estimatedBytes() { return Area.bytes(area); }
+    }
+    public record Blur(int radius, Area area) implements HistoryCommand {
+        @Override public void apply(CanvasState s) { replay(s, blur(radius), area); }
+        @Override public long estimatedBytes() { return Area.bytes(area); }
+    }
+    public record Sharpen(int radius, double amount, int threshold, Area area) implements HistoryCommand {
+        @Override public void apply(CanvasState s) { replay(s, sharpen(radius, amount, threshold), area); }
+        @Override public long estimatedBytes() { return Area.bytes(area); }
+    }
+    public record Edges(Area area) implements HistoryCommand {
+        @Override public void apply(CanvasState s) { replay(s, edges(), area); }
+        @Override public long estimatedBytes() { return Area.bytes(area); }
+    }
+
+    // ---------- auto levels ----------
+    /** Fraction of pixels allowed to clip at each end, so a few outliers do not pin the range. */
+    static final double AUTO_CLIP = 0.005;
+
+    private static ToneLut stretch(long[] counts, Histogram.Channel from, ToneLut.Channel to){
+        int lo = Histogram.percentile(counts, from, AUTO_CLIP), hi = Histogram.percentile(counts, from, 1 - AUTO_CLIP);
+        if (hi <= lo) return ToneLut.IDENTITY;
+        return ToneLut.levels(to, lo, hi, 1, 0, 255);
+    }
+
+    private static long[] histogramOf(CanvasState s){
+        Area a = Area.of(s);
+        if (a == null) return s.getHistogram().counts();
+        long[] counts = new long[4 * Histogram.BINS];
+        if (a.isEmpty()) return counts;
+        int[] buf = new int[a.w() * a.h()], c = new int[counts.length];
+        s.getDocument().readPixels(a.x(), a.y(), a.w(), a.h(), buf, 0, a.w());
+        if (a.mask() == null) Histogram.count(buf, 0, buf.length, c);
+        else a.mask().forEachRun((y, x0, x1) -> Histogram.count(buf, y * a.w() + x0, x1 - x0 + 1, c));
+        for (int i = 0; i < c.length; i++) counts[i] = c[i];
+        return counts;
     }
 
-    private interface CA { void apply(ColorAdjust ca); }
-    private static void bakeAdjust(CanvasState s, CA fn){
-        ColorAdjust ca = new ColorAdjust(); fn.apply(ca);
-        var snap = s.getBase().snapshot(null, null);
-        var iv = new ImageView(snap); iv.setEffect(ca);
-        var baked = iv.snapshot(null, null);
-        s.getBase().getGraphicsContext2D().drawImage(baked, 0, 0);
+    // ---------- implementations ----------
+    private static void replay(CanvasState s, Filter f, Area a){
+        f.run(s.getDocument(), a, NEVER);
+        invalidate(s, a);
+    }
+
+    /** Run a point kernel over the whole layer, or read-modify-write just the area. */
+    private static void point(RasterDocument doc, PixelKernel k, Area a){
+        if (a == null) {
+            doc.apply(k);
+            return;
+        }
+        if (a.isEmpty()) return;
+        int[] buf = new int[a.w() * a.h()];
+        doc.readPixels(a.x(), a.y(), a.w(), a.h(), buf, 0, a.w());
+        IntStream rows = IntStream.range(0, a.h());
+        if (buf.length >= PixelKernel.PARALLEL_THRESHOLD) rows = rows.parallel();
+        rows.forEach(r -> k.apply(buf, r * a.w(), a.w()));
+        a.write(doc, buf);
+    }
+
+    static void invalidate(CanvasState s, Area a){
+        if (a == null) s.invalidateAll();
+        else s.invalidate(a.x(), a.y(), a.w(), a.h());
+    }
+
+    /** The lifted selection image and its ghost on the overlay predate the effect: refresh them. */
+    static void afterEdit(CanvasState s, Area a){
+        if (a == null || s.getSelection() == null) return;
+        RegionMask m = s.getSelectionMask();
+        int x = (int) s.getSelX(), y = (int) s.getSelY();
+        int w = (int) s.getSelection().getWidth(), h = (int) s.getSelection().getHeight();
+        s.setSelection(m == null ? s.getDocument().toImage(x, y, w, h)
+                : MagicWandTool.toImage(MagicWandTool.readMasked(s.getDocument(), m), w, h));
+        s.setSelectionMask(m);
+        s.clearOverlay();
+        SelectTool.drawMarquee(s.getOverlay().getGraphicsContext2D(), x, y, w, h);
+    }
+
+    // ---------- kernels ----------
+    /** Flip RGB, keep alpha; fully transparent pixels are left alone. */
+    static final PixelKernel INVERT = (px, off, len) -> {
+        for (int i = off, end = off + len; i < end; i++) {
+            int p = px[i];
+            px[i] = p ^ ((-(p >>> 24) >> 31) & 0x00FFFFFF);   // mask is 0 when alpha is 0
+        }
+    };
+
+    /** Saturation 0 → r = g = b = HSB brightness (the largest channel). */
+    static final PixelKernel GRAY = (px, off, len) -> {
+        for (int i = off, end = off + len; i < end; i++) {
+            int p = px[i];
+            if ((p >>> 24) == 0) continue;
+            int v = Math.max((p >>> 16) & 0xFF, Math.max((p >>> 8) & 0xFF, p & 0xFF));
+            px[i] = (p & 0xFF000000) | (v << 16) | (v << 8) | v;
+        }
+    };
+
+    /** HSB brightness by delta (-1..1), hue/saturation kept; the per-v scale is tabled once. */
+    static PixelKernel brightnessKernel(double delta) {
+        double b = Math.max(-1, Math.min(1, delta));
+        double[] scale = new double[256];          // new/old brightness for v = 1..255
+        for (int v = 1; v < 256; v++) scale[v] = (b > 0 ? v + (255 - v) * b : v * (1 + b)) / v;
+        int black = (int) Math.round(b > 0 ? 255 * b : 0);  // v == 0 has no hue to scale
+        int blackRgb = (black << 16) | (black << 8) | black;
+        return (px, off, len) -> {
+            for (int i = off, end = off + len; i < end; i++) {
+                int p = px[i];
+                if ((p >>> 24) == 0) continue;
+                int r = (p >>> 16) & 0xFF, g = (p >>> 8) & 0xFF, bl = p & 0xFF;
+                int v = Math.max(r, Math.max(g, bl));
+                if (v == 0) { px[i] = (p & 0xFF000000) | blackRgb; continue; }
+                double k = scale[v];
+                r = (int) Math.round(r * k); g = (int) Math.round(g * k); bl = (int) Math.round(bl * k);
+                px[i] = (p & 0xFF000000) | (r << 16) | (g << 8) | bl;
+            }
+        };
     }
 }
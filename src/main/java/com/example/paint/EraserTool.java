@@ -2,8 +2,6 @@ package com.example.paint;
 
 import javafx.beans.value.ChangeListener;
 import javafx.scene.Cursor;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.image.PixelWriter;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
 import java.util.ArrayList;
@@ -14,6 +12,7 @@ public class EraserTool implements Tool {
     private Cursor currentCursor = Cursor.DEFAULT;
     private ChangeListener<Number> brushListener;
     private boolean drew = false;
+    private double diameter; // captured at press so replay matches exactly
 
     private static final double STAMP_STEP = 0.6;
 
@@ -44,54 +43,74 @@ public class EraserTool implements Tool {
     @Override
     public void onPress(CanvasState s, HistoryManager h, MouseEvent e) {
         points.clear();
-        drew = false;
+        diameter = s.getBrush();
         points.add(new double[]{e.getX(), e.getY()});
-        stampCircle(s.getBase().getGraphicsContext2D(), e.getX(), e.getY(), s.getBrush());
+        stampCircle(s, e.getX(), e.getY(), diameter);
         drew = true;
     }
 
     @Override
     public void onDrag(CanvasState s, HistoryManager h, MouseEvent e) {
         points.add(new double[]{e.getX(), e.getY()});
-        GraphicsContext g = s.getBase().getGraphicsContext2D();
-        double brush = s.getBrush();
-
-        if (points.size() < 3) {
-            double[] p = points.get(points.size()-2);
-            stampSegment(g, p[0], p[1], e.getX(), e.getY(), brush);
-            drew = true;
-            return;
-        }
         int last = points.size() - 1;
-        double[] p0 = points.get(last - 2);
+        double[] p0 = points.get(Math.max(0, last - 2));
         double[] p1 = points.get(last - 1);
         double[] p2 = points.get(last);
-
-        double mx1 = (p0[0] + p1[0]) / 2.0;
-        double my1 = (p0[1] + p1[1]) / 2.0;
-        double mx2 = (p1[0] + p2[0]) / 2.0;
-        double my2 = (p1[1] + p2[1]) / 2.0;
-
-        stampQuadratic(g, mx1, my1, p1[0], p1[1], mx2, my2, brush);
+        stampPiece(s, points.size(), p0[0], p0[1], p1[0], p1[1], p2[0], p2[1], diameter);
         drew = true;
     }
 
     @Override
     public void onRelease(CanvasState s, HistoryManager h, MouseEvent e) {
-        if (drew) h.push(); // one snapshot per stroke at finish
+        if (drew) {
+            double[] xy = new double[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                xy[2 * i] = points.get(i)[0];
+                xy[2 * i + 1] = points.get(i)[1];
+            }
+            h.push(new Erase(xy, diameter)); // one history step per stroke at finish
+        }
         points.clear();
         drew = false;
     }
 
-    // ---- stamping helpers (unchanged) ----
-    private void stampCircle(GraphicsContext g, double x, double y, double diameter) {
-        PixelWriter pw = g.getPixelWriter();
-        if (pw == null) return;
+    /** One finished eraser stroke: flat x,y pairs plus the eraser diameter. */
+    public record Erase(double[] xy, double diameter) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            stampCircle(s, xy[0], xy[1], diameter);
+            int n = xy.length / 2;
+            for (int k = 2; k <= n; k++) {
+                int i0 = 2 * Math.max(0, k - 3), i1 = 2 * (k - 2), i2 = 2 * (k - 1);
+                stampPiece(s, k, xy[i0], xy[i0 + 1], xy[i1], xy[i1 + 1], xy[i2], xy[i2 + 1], diameter);
+            }
+        }
+
+        @Override public long estimatedBytes() { return 64 + 8L * xy.length; }
+    }
+
+    // ---- stamping helpers (write transparent pixels into the document) ----
+    /** Stamp the piece added by the n-th point (n >= 2); p0..p2 are the last three points. */
+    private static void stampPiece(CanvasState s, int n, double x0, double y0, double x1, double y1,
+                                   double x2, double y2, double diameter) {
+        if (n < 3) {
+            stampSegment(s, x1, y1, x2, y2, diameter);
+            return;
+        }
+        double mx1 = (x0 + x1) / 2.0;
+        double my1 = (y0 + y1) / 2.0;
+        double mx2 = (x1 + x2) / 2.0;
+        double my2 = (y1 + y2) / 2.0;
+        stampQuadratic(s, mx1, my1, x1, y1, mx2, my2, diameter);
+    }
+
+    private static void stampCircle(CanvasState s, double x, double y, double diameter) {
+        RasterDocument doc = s.getDocument();
         double r = diameter * 0.5;
         int minX = (int)Math.floor(x - r), minY = (int)Math.floor(y - r);
         int maxX = (int)Math.ceil (x + r), maxY = (int)Math.ceil (y + r);
-        int width  = (int) g.getCanvas().getWidth();
-        int height = (int) g.getCanvas().getHeight();
+        int width  = doc.getWidth();
+        int height = doc.getHeight();
         minX = Math.max(0, Math.min(minX, width  - 1));
         maxX = Math.max(0, Math.min(maxX, width  - 1));
         minY = Math.max(0, Math.min(minY, height - 1));
@@ -106,27 +125,26 @@ public class EraserTool implements Tool {
             int ex = (int)Math.ceil (x + span);
             sx = Math.max(sx, minX);
             ex = Math.min(ex, maxX);
-            for (int xx = sx; xx <= ex; xx++) {
-                pw.setArgb(xx, yy, 0x00000000);
-            }
+            if (ex >= sx) doc.fillRect(sx, yy, ex - sx + 1, 1, 0x00000000);
         }
+        s.invalidate(minX, minY, maxX - minX + 1, maxY - minY + 1);
     }
 
-    private void stampSegment(GraphicsContext g, double x1, double y1, double x2, double y2, double diameter) {
+    private static void stampSegment(CanvasState s, double x1, double y1, double x2, double y2, double diameter) {
         double dx = x2 - x1, dy = y2 - y1;
         double dist = Math.hypot(dx, dy);
-        if (dist == 0) { stampCircle(g, x1, y1, diameter); return; }
+        if (dist == 0) { stampCircle(s, x1, y1, diameter); return; }
         double step = Math.max(STAMP_STEP, diameter * 0.20);
         int n = Math.max(1, (int)(dist / step));
         double sx = dx / n, sy = dy / n;
         double x = x1, y = y1;
         for (int i = 0; i <= n; i++) {
-            stampCircle(g, x, y, diameter);
+            stampCircle(s, x, y, diameter);
             x += sx; y += sy;
         }
     }
 
-    private void stampQuadratic(GraphicsContext g, double x0, double y0, double cx, double cy, double x2, double y2, double diameter) {
+    private static void stampQuadratic(CanvasState s, double x0, double y0, double cx, double cy, double x2, double y2, double diameter) {
         double len = approxQuadLength(x0,y0,cx,cy,x2,y2);
         double step = Math.max(STAMP_STEP, diameter * 0.20);
         int n = Math.max(2, (int)(len / step));
@@ -134,7 +152,7 @@ public class EraserTool implements Tool {
             double t = i / (double) n;
             double x = quad(x0, cx, x2, t);
             double y = quad(y0, cy, y2, t);
-            stampCircle(g, x, y, diameter);
+            stampCircle(s, x, y, diameter);
         }
     }
 
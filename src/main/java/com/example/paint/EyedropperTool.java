@@ -7,10 +7,13 @@ public class EyedropperTool implements Tool {
 
     @Override
     public void onPress(CanvasState s, HistoryManager h, MouseEvent e) {
-        var snap = s.getBase().snapshot(null, null);
+        RasterDocument doc = s.getDocument();
         int ix = (int)e.getX(), iy = (int)e.getY();
-        if (ix<0 || iy<0 || ix>=snap.getWidth() || iy>=snap.getHeight()) return;
-        var c = snap.getPixelReader().getColor(ix, iy);
+        if (!doc.contains(ix, iy)) return;
+        // cached composite or the active layer; no recompositing beyond one tile
+        int argb = s.isSampleAllLayers() ? s.getLayers().getCompositeArgb(ix, iy) : doc.getArgb(ix, iy);
+        // sample over white, as the old (white-filled) snapshot did
+        var c = ColorUtils.color(ColorUtils.blendOver(0xFFFFFFFF, argb));
         s.getStrokePicker().setValue(c);
         s.setStatus("Picked " + c);
     }
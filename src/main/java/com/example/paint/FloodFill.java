@@ -0,0 +1,339 @@
+package com.example.paint;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Scanline flood fill: finds the connected region of pixels similar to a seed pixel.
+ * - Whole horizontal spans are taken at once and only the rows above and below are scanned,
+ *   so each pixel is tested a few times and nothing is allocated per pixel
+ * - Pending spans live on a growable primitive int stack
+ * - Colour distance is compared squared, in integers (no sqrt per pixel)
+ * - The region is a {@link RegionMask}; its word-aligned rows let neighbour scans skip
+ *   already-filled pixels 64 at a time
+ * - Regions that outgrow PARALLEL_THRESHOLD pixels are redone by a parallel labeller: runs of
+ *   matching pixels are found per band of tile rows on the ForkJoin common pool, joined across
+ *   band borders with union-find, and the seed's component is the region (same result)
+ * - {@link #similar} skips connectivity: every pixel within tolerance, matched band by band in
+ *   parallel with a branch-free inner loop the JIT can vectorise
+ */
+final class FloodFill {
+    private static final int T = RasterDocument.TILE_SIZE;
+    /** A sequential fill that grows past this many pixels hands over to the parallel labeller. */
+    static final int PARALLEL_THRESHOLD = 1 << 21;
+
+    final int width, height;
+    final RegionMask mask;
+
+    private final RasterDocument src;
+    private final int target, ta, tr, tg, tb;
+    private final int alphaLimit;   // transparent target: max alpha difference
+    private final long distLimit;   // otherwise: max 4*(dr²+dg²+db²) + da² (alpha half-weight)
+
+    private FloodFill(RasterDocument src, int target, double tolerance) {
+        this.src = src;
+        this.width = src.getWidth();
+        this.height = src.getHeight();
+        this.mask = new RegionMask(width, height);
+        this.target = target;
+        ta = target >>> 24;
+        tr = (target >>> 16) & 0xFF;
+        tg = (target >>> 8) & 0xFF;
+        tb = target & 0xFF;
+        double maxDist = tolToDistance(tolerance) * 255.0;
+        alphaLimit = (int) Math.floor(maxDist);
+        distLimit = (long) Math.floor(4 * maxDist * maxDist);
+    }
+
+    /** UI tolerance 0..1 → normalised colour distance (gentle curve, capped below 1). */
+    static double tolToDistance(double tol) {
+        tol = Math.max(0.0, Math.min(1.0, tol));
+        return Math.pow(tol, 0.8) * 0.9;
+    }
+
+    /** The region connected to (sx,sy) (4- or 8-way) of pixels within tolerance of the seed. */
+    static FloodFill region(RasterDocument src, int sx, int sy, double tolerance, boolean diagonal) {
+        FloodFill f = new FloodFill(src, src.getArgb(sx, sy), tolerance);
+        boolean parallel = ForkJoinPool.getCommonPoolParallelism() > 1
+                && (long) f.width * f.height > PARALLEL_THRESHOLD;
+        if (f.scan(sx, sy, diagonal, parallel ? PARALLEL_THRESHOLD : Long.MAX_VALUE)) return f;
+        f.mask.clear();                          // too big: start over in parallel
+        f.label(sx, sy, diagonal);
+        return f;
+    }
+
+    /** Every pixel within tolerance of (sx,sy)'s colour, connected or not ("replace colour"). */
+    static FloodFill similar(RasterDocument src, int sx, int sy, double tolerance) {
+        FloodFill f = new FloodFill(src, src.getArgb(sx, sy), tolerance);
+        IntStream.range(0, src.getTileRows()).parallel().forEach(f::matchBand);
+        f.mask.boundsChanged();
+        return f;
+    }
+
+    boolean matches(int argb) {
+        if (argb == target) return true;
+        int a = argb >>> 24;
+        if (ta == 0) return Math.abs(a - ta) <= alphaLimit; // fully transparent target: compare mostly alpha
+        int dr = ((argb >>> 16) & 0xFF) - tr, dg = ((argb >>> 8) & 0xFF) - tg, db = (argb & 0xFF) - tb, da = a - ta;
+        return 4L * (dr * dr + dg * dg + db * db) + (long) da * da <= distLimit;
+    }
+
+    private int argb(int x, int y) {
+        int[] t = src.peekTile((y / T) * src.getTileCols() + x / T);
+        return t == null ? 0 : t[(y % T) * T + (x % T)];
+    }
+
+    private boolean free(int x, int y) {
+        return !mask.contains(x, y) && matches(argb(x, y));
+    }
+
+    /** Last x' in [x, limit] with x..x' all free; x itself is free. Walks the row a tile at a time. */
+    private int runRight(int x, int y, int limit) {
+        int tileRow = (y / T) * src.getTileCols(), rowOff = (y % T) * T, base = y * mask.stride;
+        long[] bits = mask.bits;
+        while (x < limit) {
+            int tx = (x + 1) / T, segEnd = Math.min(limit, tx * T + T - 1);
+            int[] t = src.peekTile(tileRow + tx);
+            int off = rowOff - tx * T;
+            for (int nx = x + 1; nx <= segEnd; nx++) {
+                if ((bits[base + (nx >>> 6)] & (1L << nx)) != 0 || !matches(t == null ? 0 : t[off + nx])) return nx - 1;
+            }
+            x = segEnd;
+        }
+        return x;
+    }
+
+    /** First x' in [0, x] with x'..x all free; x itself is free. */
+    private int runLeft(int x, int y) {
+        int tileRow = (y / T) * src.getTileCols(), rowOff = (y % T) * T, base = y * mask.stride;
+        long[] bits = mask.bits;
+        while (x > 0) {
+            int tx = (x - 1) / T, segStart = tx * T;
+            int[] t = src.peekTile(tileRow + tx);
+            int off = rowOff - segStart;
+            for (int nx = x - 1; nx >= segStart; nx--) {
+                if ((bits[base + (nx >>> 6)] & (1L << nx)) != 0 || !matches(t == null ? 0 : t[off + nx])) return nx + 1;
+            }
+            x = segStart;
+        }
+        return x;
+    }
+
+    // ---------- Scanline ----------
+    /** Fill from the seed; gives up (false) once more than budget pixels are in the region. */
+    private boolean scan(int sx, int sy, boolean diagonal, long budget) {
+        int reach = diagonal ? 1 : 0;            // how far past a span its neighbours may start
+        int[] stack = new int[256];
+        int sp = 0;
+        stack[sp++] = sx;
+        stack[sp++] = sy;
+        while (sp > 0) {
+            int y = stack[--sp], x = stack[--sp];
+            if (!free(x, y)) continue;
+
+            // widen to the full span on this row
+            int lx = runLeft(x, y), rx = runRight(x, y, width - 1);
+            mask.addSpan(y, lx, rx);
+            if ((budget -= rx - lx + 1) < 0) return false;
+
+            // queue the start of every free run touching the span in the rows above and below
+            int from = Math.max(0, lx - reach), to = Math.min(width - 1, rx + reach);
+            for (int ny = y - 1; ny <= y + 1; ny += 2) {
+                if (ny < 0 || ny >= height) continue;
+                for (int nx = mask.next(ny, from, to + 1, false); nx <= to; nx = mask.next(ny, nx + 1, to + 1, false)) {
+                    if (!matches(argb(nx, ny))) continue;
+                    if (sp + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[sp++] = nx;
+                    stack[sp++] = ny;
+                    nx = runRight(nx, ny, to);          // one entry per run
+                }
+            }
+        }
+        return true;
+    }
+
+    // ---------- Global match ----------
+    /** Mask words of every matching pixel in tile row ty (bands own disjoint mask rows). */
+    private void matchBand(int ty) {
+        int cols = src.getTileCols(), stride = mask.stride;
+        long[] bits = mask.bits;
+        int[] hit = new int[T];
+        boolean clearMatches = matches(0);      // unallocated tiles are all transparent
+        for (int y = ty * T; y < Math.min(height, ty * T + T); y++) {
+            int base = y * stride, rowOff = (y % T) * T;
+            for (int tx = 0; tx < cols; tx++) {
+                int segStart = tx * T, n = Math.min(T, width - segStart);
+                int[] t = src.peekTile(ty * cols + tx);
+                if (t == null && !clearMatches) continue;
+                if (t != null) matchRow(t, rowOff, n, hit);
+                for (int j = 0; j < n; j += 64) {   // tiles are 64-aligned, so are the words
+                    int m = Math.min(64, n - j);
+                    long word;
+                    if (t == null) {
+                        word = m == 64 ? -1L : (1L << m) - 1;
+                    } else {
+                        word = 0;
+                        for (int b = 0; b < m; b++) word |= (long) hit[j + b] << b;
+                    }
+                    bits[base + ((segStart + j) >>> 6)] = word;
+                }
+            }
+        }
+    }
+
+    /** hit[i] = 1 if t[off + i] matches, else 0. Branch-free int arithmetic, so C2 can vectorise it. */
+    private void matchRow(int[] t, int off, int n, int[] hit) {
+        if (ta == 0) {
+            int lim = alphaLimit;
+            for (int i = 0; i < n; i++) hit[i] = ((t[off + i] >>> 24) - lim - 1) >>> 31;
+            return;
+        }
+        int lim = (int) distLimit, r = tr, g = tg, b = tb, a = ta;
+        for (int i = 0; i < n; i++) {
+            int p = t[off + i];
+            int dr = ((p >>> 16) & 0xFF) - r, dg = ((p >>> 8) & 0xFF) - g, db = (p & 0xFF) - b, da = (p >>> 24) - a;
+            hit[i] = (4 * (dr * dr + dg * dg + db * db) + da * da - lim - 1) >>> 31; // 1 iff dist <= lim
+        }
+    }
+
+    // ---------- Parallel labelling ----------
+    /** Runs of matching pixels in one band of rows, with a band-local union-find over them. */
+    private static final class Band {
+        final int y0, y1;
+        final int[] rowStart;                   // runs of row y: rowStart[y-y0] .. rowStart[y-y0+1)
+        int[] x0 = new int[64], x1 = new int[64], parent = new int[64];
+        int n, offset;                          // run count; first global run index
+
+        Band(int y0, int y1) {
+            this.y0 = y0;
+            this.y1 = y1;
+            rowStart = new int[y1 - y0 + 1];
+        }
+
+        void add(int a, int b) {
+            if (n == x0.length) {
+                x0 = Arrays.copyOf(x0, n * 2);
+                x1 = Arrays.copyOf(x1, n * 2);
+                parent = Arrays.copyOf(parent, n * 2);
+            }
+            x0[n] = a;
+            x1[n] = b;
+            parent[n] = n;
+            n++;
+        }
+    }
+
+    private void label(int sx, int sy, boolean diagonal) {
+        int reach = diagonal ? 1 : 0;
+        Band[] bands = new Band[(height + T - 1) / T];
+        for (int k = 0; k < bands.length; k++) bands[k] = new Band(k * T, Math.min(height, (k + 1) * T));
+
+        // 1. runs and their connectivity inside each band, concurrently
+        IntStream.range(0, bands.length).parallel().forEach(k -> collect(bands[k], reach));
+
+        // 2. one global union-find; join the runs that touch across band borders
+        int total = 0;
+        for (Band b : bands) { b.offset = total; total += b.n; }
+        int[] parent = new int[total];
+        IntStream.range(0, bands.length).parallel().forEach(k -> {
+            Band b = bands[k];
+            for (int i = 0; i < b.n; i++) parent[b.offset + i] = b.offset + find(b.parent, i);
+        });
+        for (int k = 1; k < bands.length; k++) {
+            Band a = bands[k - 1], b = bands[k];
+            joinRows(a, a.rowStart[a.y1 - a.y0 - 1], a.rowStart[a.y1 - a.y0],
+                     b, b.rowStart[0], b.rowStart[1], reach, parent);
+        }
+
+        // 3. the seed's component is the region; bands write disjoint mask rows
+        Band seedBand = bands[sy / T];
+        int seedRun = -1;
+        for (int i = seedBand.rowStart[sy - seedBand.y0]; i < seedBand.rowStart[sy - seedBand.y0 + 1]; i++) {
+            if (seedBand.x0[i] <= sx && sx <= seedBand.x1[i]) { seedRun = seedBand.offset + i; break; }
+        }
+        int root = find(parent, seedRun);
+        IntStream.range(0, bands.length).parallel().forEach(k -> {
+            Band b = bands[k];
+            for (int y = b.y0; y < b.y1; y++) {
+                for (int i = b.rowStart[y - b.y0]; i < b.rowStart[y - b.y0 + 1]; i++) {
+                    if (findConst(parent, b.offset + i) == root) mask.setSpan(y, b.x0[i], b.x1[i]);
+                }
+            }
+        });
+        mask.boundsChanged();
+    }
+
+    /** Find the matching runs of every row in the band and union touching runs of adjacent rows. */
+    private void collect(Band b, int reach) {
+        int cols = src.getTileCols();
+        boolean clearMatches = matches(0);      // unallocated tiles are all transparent
+        for (int y = b.y0; y < b.y1; y++) {
+            int first = b.n;
+            b.rowStart[y - b.y0] = first;
+            int tileRow = (y / T) * cols, rowOff = (y % T) * T, start = -1;
+            for (int tx = 0; tx < cols; tx++) {
+                int segStart = tx * T, segEnd = Math.min(width, segStart + T);
+                int[] t = src.peekTile(tileRow + tx);
+                if (t == null) {
+                    if (clearMatches) { if (start < 0) start = segStart; }
+                    else if (start >= 0) { b.add(start, segStart - 1); start = -1; }
+                    continue;
+                }
+                int off = rowOff - segStart;
+                for (int x = segStart; x < segEnd; x++) {
+                    if (matches(t[off + x])) { if (start < 0) start = x; }
+                    else if (start >= 0) { b.add(start, x - 1); start = -1; }
+                }
+            }
+            if (start >= 0) b.add(start, width - 1);
+            if (y > b.y0) joinRows(b, b.rowStart[y - b.y0 - 1], first, b, first, b.n, reach, b.parent);
+        }
+        b.rowStart[b.y1 - b.y0] = b.n;
+    }
+
+    /**
+     * Union every run a in [as,ae) of band a with every touching run in [bs,be) of band b
+     * (rows directly above each other). Runs are sorted, so one sweep finds all pairs.
+     */
+    private static void joinRows(Band a, int as, int ae, Band b, int bs, int be, int reach, int[] parent) {
+        int ao = a == b ? 0 : a.offset, bo = a == b ? 0 : b.offset;
+        for (int i = as, j = bs; i < ae && j < be; ) {
+            if (b.x0[j] <= a.x1[i] + reach && a.x0[i] <= b.x1[j] + reach) union(parent, ao + i, bo + j);
+            if (a.x1[i] < b.x1[j]) i++; else j++;
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];      // path halving
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /** find without path compression, safe to run from several threads once unions are done. */
+    private static int findConst(int[] parent, int i) {
+        while (parent[i] != i) i = parent[i];
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a), rb = find(parent, b);
+        if (ra < rb) parent[rb] = ra; else if (rb < ra) parent[ra] = rb;
+    }
+
+    // ---------- Growing and painting ----------
+    /** Largest expand/contract radius offered for fills. */
+    static final int MAX_EXPAND = 50;
+
+    /** Grow (n > 0) or shrink (n < 0) a region by |n| pixels to hug or avoid anti-aliased borders. */
+    static void expand(RegionMask m, int n, boolean diagonal) {
+        m.dilate(Math.max(-MAX_EXPAND, Math.min(MAX_EXPAND, n)), diagonal);
+    }
+
+    /** Write argb into every pixel of region m in doc, one fillRect per row run. */
+    static void paint(RegionMask m, RasterDocument doc, int argb) {
+        m.forEachRun((y, x0, x1) -> doc.fillRect(x0, y, x1 - x0 + 1, 1, argb));
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.paint;
+
+import java.util.stream.IntStream;
+
+/**
+ * Red, green, blue and luminance histograms of a document, kept up to date tile by tile.
+ * - Every tile keeps its own counts. An edit only marks the tiles it touches; the next
+ *   {@link #refresh} subtracts their old counts from the totals and adds the recounted ones,
+ *   so painting rescans the touched tiles, never the whole image
+ * - The first count (and any switch to another document) scans all tiles in parallel
+ * - Only painted pixels count (alpha &gt; 0); unallocated tiles are skipped outright
+ * - Luminance is Rec. 601 (0.299 R + 0.587 G + 0.114 B)
+ */
+public final class Histogram {
+    public enum Channel { RED, GREEN, BLUE, LUMINANCE }
+
+    /** Bins per channel; counts are laid out channel by channel, 4 × BINS. */
+    public static final int BINS = 256;
+    private static final int[] NONE = new int[4 * BINS];
+
+    private RasterDocument src;                     // document the counts describe
+    private int[][] tileCounts;                     // per tile; NONE for transparent tiles
+    private boolean[] stale;
+    private boolean anyStale;
+    private final long[] totals = new long[4 * BINS];
+    private long version;                           // bumps whenever the counts change
+
+    /** Pixels in this document rectangle changed. */
+    void markDirty(int x, int y, int w, int h) {
+        if (src == null) return;
+        int T = RasterDocument.TILE_SIZE, cols = src.getTileCols(), rows = src.getTileRows();
+        int tx0 = Math.max(0, x / T), ty0 = Math.max(0, y / T);
+        int tx1 = Math.min(cols - 1, (x + w - 1) / T), ty1 = Math.min(rows - 1, (y + h - 1) / T);
+        for (int ty = ty0; ty <= ty1; ty++)
+            for (int tx = tx0; tx <= tx1; tx++) stale[ty * cols + tx] = true;
+        anyStale |= tx0 <= tx1 && ty0 <= ty1;
+    }
+
+    /** Bring the counts in line with doc, recounting only stale tiles. FX thread. */
+    void refresh(RasterDocument doc) {
+        if (doc != src || tileCounts.length != doc.getTileCols() * doc.getTileRows()) {
+            src = doc;
+            tileCounts = new int[doc.getTileCols() * doc.getTileRows()][];
+            java.util.Arrays.fill(tileCounts, NONE);
+            stale = new boolean[tileCounts.length];
+            java.util.Arrays.fill(stale, true);
+            java.util.Arrays.fill(totals, 0);
+            anyStale = true;
+        }
+        if (!anyStale) return;
+        int[] todo = new int[stale.length];
+        int n = 0;
+        for (int i = 0; i < stale.length; i++) if (stale[i]) todo[n++] = i;
+        int[][] fresh = new int[n][];
+        IntStream range = IntStream.range(0, n);
+        if (n > 1) range = range.parallel();
+        range.forEach(j -> fresh[j] = countTile(doc, todo[j]));
+        for (int j = 0; j < n; j++) {
+            int i = todo[j];
+            int[] old = tileCounts[i], now = fresh[j];
+            for (int k = 0; k < totals.length; k++) totals[k] += now[k] - old[k];
+            tileCounts[i] = now;
+            stale[i] = false;
+        }
+        anyStale = false;
+        version++;
+    }
+
+    private static int[] countTile(RasterDocument doc, int i) {
+        int[] t = doc.peekTile(i);
+        if (t == null) return NONE;
+        int T = RasterDocument.TILE_SIZE, cols = doc.getTileCols();
+        int vw = Math.min(T, doc.getWidth() - (i % cols) * T), vh = Math.min(T, doc.getHeight() - (i / cols) * T);
+        int[] c = new int[4 * BINS];
+        for (int r = 0; r < vh; r++) count(t, r * T, vw, c);
+        return c;
+    }
+
+    /** Add the painted pixels of px[off .. off+len) to counts (4 × BINS). */
+    static void count(int[] px, int off, int len, int[] counts) {
+        for (int k = off, end = off + len; k < end; k++) {
+            int p = px[k];
+            if ((p >>> 24) == 0) continue;
+            int r = (p >>> 16) & 0xFF, g = (p >>> 8) & 0xFF, b = p & 0xFF;
+            counts[r]++;
+            counts[BINS + g]++;
+            counts[2 * BINS + b]++;
+            counts[3 * BINS + ((77 * r + 150 * g + 29 * b) >> 8)]++;
+        }
+    }
+
+    // ---------- Queries ----------
+    public long getVersion() { return version; }
+
+    public long count(Channel c, int v) { return totals[c.ordinal() * BINS + v]; }
+
+    /** Painted pixels counted. */
+    public long total() {
+        long n = 0;
+        for (int v = 0; v < BINS; v++) n += totals[v];
+        return n;
+    }
+
+    /** Copy of all counts, channel by channel (4 × BINS). */
+    public long[] counts() { return totals.clone(); }
+
+    /** Lowest value v with at least fraction p (0..1) of the channel's pixels at or below it; 0 if empty. */
+    public static int percentile(long[] counts, Channel c, double p) {
+        int base = c.ordinal() * BINS;
+        long n = 0;
+        for (int v = 0; v < BINS; v++) n += counts[base + v];
+        if (n == 0) return 0;
+        long need = Math.max(1, (long) Math.ceil(p * n)), seen = 0;
+        for (int v = 0; v < BINS; v++) if ((seen += counts[base + v]) >= need) return v;
+        return BINS - 1;
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.paint;
+
+/**
+ * A recorded tool operation that {@link HistoryManager} can replay on top of a keyframe.
+ * - apply() must be deterministic: same document in, same pixels out.
+ * - Tools commit through apply() themselves, so live drawing and replay share one code path.
+ * - Implementations are small immutable records; their toString() doubles as the session log.
+ */
+public interface HistoryCommand {
+    void apply(CanvasState s);
+
+    /** Rough heap size, charged against the history byte budget. */
+    default long estimatedBytes() { return 64; }
+}
@@ -1,40 +1,124 @@
 package com.example.paint;
 
-import javafx.scene.SnapshotParameters;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
-
+import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Undo/Redo where the UNDO stack's last element is always the current state.
  * - Call push() once after finishing a stroke/shape (mouse released).
  * - New edits clear the redo stack.
  * - Supports transparent canvases.
+ * - States are copy-on-write {@link LayerStack.Snapshot}s of every layer: tiles a stroke didn't touch
+ *   are shared with the previous state, so a push costs one reference per tile and
+ *   undo/redo only rewrite tiles that actually differ.
+ * - History is bounded by bytes, not entries. Every distinct tile is counted once however
+ *   many states share it.
+ * - Two tiers: a small LRU of "hot" states keeps its tiles on the heap; colder states are
+ *   compressed into a memory-mapped {@link SpillFile} and paged back in when undo reaches
+ *   them. Tiles shared between states are spilled once.
+ * - Edits pushed with a {@link HistoryCommand} are logged as commands; pixels are only kept
+ *   as a keyframe every KEYFRAME_INTERVAL commands (or for pixel-only pushes). Undo restores
+ *   the nearest keyframe and replays the commands after it; redo just replays the next one.
+ * - Over the heap budget (with no spill file) or the disk budget, older keyframe segments are
+ *   first thinned into coarser checkpoints (every other one dropped), then the oldest are evicted.
  */
 public class HistoryManager {
+    /** Newest states that are never thinned, so recent undo stays step-by-step. */
+    private static final int KEEP_FINE = 10;
+    /** Max states kept on the heap when a spill file is available. */
+    private static final int HOT_STATES = 24;
+    /** A command push also stores pixels after this many commands without a keyframe. */
+    private static final int KEYFRAME_INTERVAL = 16;
+    private static final int TILE_INTS = RasterDocument.TILE_SIZE * RasterDocument.TILE_SIZE;
+    private static final long TILE_BYTES = 4L * TILE_INTS;
+
+    /**
+     * One undo step: the command that produced it (null for pixel-only pushes) and,
+     * for keyframes, its pixels, either hot (snapshot on heap) or cold (tiles in the spill file).
+     */
+    private static final class State {
+        final HistoryCommand cmd;
+        LayerStack.Snapshot snap;        // non-null while a hot keyframe
+        SpilledTile[] cold;              // non-null while a spilled keyframe
+        LayerStack.Snapshot shape;       // layout without pixels, while spilled
+        long lastUse;
+
+        State(HistoryCommand cmd) { this.cmd = cmd; }
+
+        boolean isKeyframe() { return snap != null || cold != null; }
+    }
+
+    /** A tile on disk, shared by every cold state that had the same tile array. */
+    private static final class SpilledTile {
+        final SpillFile.Ref ref;
+        int coldRefs;
+        int[] live;                      // the heap array while some hot state still holds it
+        SpilledTile(SpillFile.Ref ref) { this.ref = ref; }
+    }
+
     private final CanvasState state;
-    private final Deque<WritableImage> undo = new ArrayDeque<>(); // top = last
-    private final Deque<WritableImage> redo = new ArrayDeque<>(); // top = last
-    private final int maxDepth;
+    private final Deque<State> undo = new ArrayDeque<>(); // top = last
+    private final Deque<State> redo = new ArrayDeque<>(); // top = last
 
-    public HistoryManager(CanvasState state) { this(state, 200); }
+    // heap accounting: how many hot states reference each tile array
+    private final Map<int[], Integer> tileRefs = new IdentityHashMap<>();
+    // heap tiles that already have a copy on disk
+    private final Map<int[], SpilledTile> spilledByTile = new IdentityHashMap<>();
+    private long usedBytes;
+    private long byteBudget;
 
-    public HistoryManager(CanvasState state, int maxDepth) {
+    private SpillFile spill;             // null when spilling is off or failed
+    private final long diskBudget;
+    private long clock;
+
+    public HistoryManager(CanvasState state) { this(state, defaultBudget(), 4L << 30); }
+
+    public HistoryManager(CanvasState state, long byteBudget) { this(state, byteBudget, 0); }
+
+    /**
+     * @param byteBudget heap bytes for retained states
+     * @param diskBudget compressed bytes allowed in the spill file; 0 disables spilling
+     */
+    public HistoryManager(CanvasState state, long byteBudget, long diskBudget) {
         this.state = state;
-        this.maxDepth = Math.max(1, maxDepth);
+        this.byteBudget = Math.max(0, byteBudget);
+        this.diskBudget = Math.max(0, diskBudget);
+        if (diskBudget > 0) {
+            try { spill = new SpillFile(); } catch (IOException ex) { ex.printStackTrace(); }
+        }
         // initial snapshot as current
-        undo.addLast(snapshotTransparent());
+        undo.addLast(keyframe(null));
+    }
+
+    /** A quarter of the max heap, capped at 1 GB. */
+    private static long defaultBudget() {
+        return Math.min(1L << 30, Runtime.getRuntime().maxMemory() / 4);
     }
 
     /** Capture the current canvas as a new state (call AFTER finishing the stroke). */
-    public void push() {
-        WritableImage snap = snapshotTransparent();
-        if (undo.size() >= maxDepth) undo.removeFirst(); // drop oldest
-        undo.addLast(snap);      // new current
-        redo.clear();            // new branch: redo invalid
+    public void push() { push(null); }
+
+    /**
+     * Record an edit that {@code cmd} reproduces (call AFTER applying it).
+     * Only the command is kept unless a keyframe is due; null means pixels only.
+     */
+    public void push(HistoryCommand cmd) {
+        boolean keyframe = cmd == null || commandsSinceKeyframe() + 1 >= KEYFRAME_INTERVAL;
+        State s;
+        if (keyframe) {
+            s = keyframe(cmd);
+        } else {
+            s = new State(cmd);
+            usedBytes += commandBytes(s);
+        }
+        undo.addLast(s); // new current
+        while (!redo.isEmpty()) release(redo.removeLast()); // new branch: redo invalid
+        trim();
     }
 
     public boolean canUndo() { return undo.size() > 1; } // keep at least one current
@@ -44,40 +128,315 @@ public class HistoryManager {
     public void undo() {
         if (!canUndo()) return;
         // move current -> redo
-        WritableImage current = undo.removeLast();
+        State current = undo.removeLast();
+        if (!restoreCurrent()) { undo.addLast(current); return; }
         redo.addLast(current);
-        // draw new current (previous)
-        WritableImage previous = undo.peekLast();
-        if (previous != null) draw(previous);
+        trim();
     }
 
     /** Step forward to next state, if any. */
     public void redo() {
         if (!canRedo()) return;
-        WritableImage next = redo.removeLast();
-        draw(next);
+        State next = redo.peekLast();
+        if (next.isKeyframe()) {
+            if (!draw(next)) return;
+        } else {
+            if (next.cmd == null) return; // pixels were lost with the spill file
+            next.cmd.apply(state);  // the document is exactly the state it was recorded on
+        }
         // make it the new current
-        if (undo.size() >= maxDepth) undo.removeFirst();
-        undo.addLast(next);
+        undo.addLast(redo.removeLast());
+        trim();
     }
 
     /** Clear all history and start fresh from current canvas. */
     public void clear() {
+        while (!undo.isEmpty()) release(undo.removeLast());
+        while (!redo.isEmpty()) release(redo.removeLast());
+        undo.addLast(keyframe(null));
+    }
+
+    /**
+     * Commands from the oldest retained state up to the current one, in order.
+     * Null entries are pixel-only steps (paste, move, open) that only a keyframe reproduces.
+     */
+    public List<HistoryCommand> getSessionLog() {
+        List<HistoryCommand> log = new ArrayList<>(undo.size());
+        for (State s : undo) log.add(s.cmd);
+        return log;
+    }
+
+    /** Delete the spill file; call when the app shuts down. */
+    public void dispose() {
+        if (spill != null) spill.close();
+        spill = null;
+    }
+
+    // --- memory budget ---
+    /** Heap bytes held by all retained states (each shared tile counted once). */
+    public long getUsedBytes() { return usedBytes; }
+
+    /** Compressed bytes of spilled states. */
+    public long getSpilledBytes() { return spill != null ? spill.getLiveBytes() : 0; }
+
+    public long getByteBudget() { return byteBudget; }
+
+    public void setByteBudget(long bytes) {
+        byteBudget = Math.max(0, bytes);
+        trim();
+    }
+
+    /** Number of retained states (undo incl. current + redo). */
+    public int size() { return undo.size() + redo.size(); }
+
+    // --- internals: accounting ----
+    private State keyframe(HistoryCommand cmd) {
+        State s = new State(cmd);
+        s.snap = state.getLayers().snapshot();
+        s.lastUse = ++clock;
+        usedBytes += commandBytes(s);
+        retainHot(s.snap);
+        return s;
+    }
+
+    /** Command-only states on top of the current keyframe. */
+    private int commandsSinceKeyframe() {
+        int n = 0;
+        for (var it = undo.descendingIterator(); it.hasNext() && !it.next().isKeyframe(); ) n++;
+        return n;
+    }
+
+    private static long commandBytes(State s) {
+        return s.cmd != null ? s.cmd.estimatedBytes() : 0;
+    }
+
+    private void retainHot(LayerStack.Snapshot snap) {
+        usedBytes += overheadBytes(snap.tiles.length);
+        for (int[] t : snap.tiles) {
+            if (t == null) continue; // transparent tile, nothing stored
+            if (tileRefs.merge(t, 1, Integer::sum) == 1) usedBytes += TILE_BYTES;
+        }
+    }
+
+    private void releaseHot(LayerStack.Snapshot snap) {
+        usedBytes -= overheadBytes(snap.tiles.length);
+        for (int[] t : snap.tiles) {
+            if (t == null) continue;
+            Integer n = tileRefs.get(t);
+            if (n == null) continue;
+            if (n > 1) { tileRefs.put(t, n - 1); continue; }
+            tileRefs.remove(t);
+            usedBytes -= TILE_BYTES;
+            SpilledTile st = spilledByTile.remove(t); // heap copy gone; disk copy stays
+            if (st != null) st.live = null;
+        }
+    }
+
+    private void releaseCold(SpilledTile[] cold) {
+        usedBytes -= overheadBytes(cold.length);
+        for (SpilledTile st : cold) {
+            if (st == null || --st.coldRefs > 0) continue;
+            if (spill != null) spill.free(st.ref);
+            if (st.live != null) spilledByTile.remove(st.live);
+            st.live = null;
+        }
+    }
+
+    private void release(State s) {
+        usedBytes -= commandBytes(s);
+        if (s.snap != null) releaseHot(s.snap);
+        if (s.cold != null) releaseCold(s.cold);
+        s.snap = null;
+        s.cold = null;
+        s.shape = null;
+    }
+
+    /** Object header + reference array of one state. */
+    private static long overheadBytes(int tiles) {
+        return 48 + 8L * tiles;
+    }
+
+    // --- internals: tiers ----
+    /** Move a hot state's tiles to disk. Returns false if the spill file failed. */
+    private boolean spillState(State s) {
+        LayerStack.Snapshot snap = s.snap;
+        SpilledTile[] cold = new SpilledTile[snap.tiles.length];
+        try {
+            for (int i = 0; i < cold.length; i++) {
+                int[] t = snap.tiles[i];
+                if (t == null) continue;
+                SpilledTile st = spilledByTile.get(t);
+                if (st == null) {
+                    st = new SpilledTile(spill.writeInts(t));
+                    st.live = t;
+                    spilledByTile.put(t, st);
+                }
+                cold[i] = st;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            disableSpill();
+            return false;
+        }
+        for (SpilledTile st : cold) if (st != null) st.coldRefs++;
+        usedBytes += overheadBytes(cold.length);
+        s.cold = cold;
+        s.shape = snap.withTiles(null);
+        s.snap = null;
+        releaseHot(snap);
+        return true;
+    }
+
+    /** Page a cold state back onto the heap; tiles shared with hot states are reused. */
+    private boolean ensureHot(State s) {
+        if (s.snap != null) return true;
+        if (s.cold == null) return false;
+        if (spill == null) return false;
+        int[][] tiles = new int[s.cold.length][];
+        try {
+            for (int i = 0; i < tiles.length; i++) {
+                SpilledTile st = s.cold[i];
+                if (st == null) continue;
+                if (st.live == null) {
+                    st.live = spill.readInts(st.ref, TILE_INTS);
+                    spilledByTile.put(st.live, st);
+                }
+                tiles[i] = st.live;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        s.snap = s.shape.withTiles(tiles);
+        retainHot(s.snap);
+        releaseCold(s.cold);
+        s.cold = null;
+        s.shape = null;
+        return true;
+    }
+
+    /** Spill failed: page everything back if we can, then continue heap-only. */
+    private void disableSpill() {
+        List<State> all = new ArrayList<>(undo);
+        all.addAll(redo);
+        for (State s : all) {
+            if (s.cold != null && !ensureHot(s)) {
+                // pixels lost: keep the entry only as a (now unreachable) command
+                releaseCold(s.cold);
+                s.cold = null;
+            }
+        }
+        spill.close();
+        spill = null;
+    }
+
+    /** Least recently used hot state other than the current one, or null. */
+    private State coldestHot() {
+        State current = undo.peekLast(), best = null;
+        for (State s : undo) if (s != current && s.snap != null && (best == null || s.lastUse < best.lastUse)) best = s;
+        for (State s : redo) if (s.snap != null && (best == null || s.lastUse < best.lastUse)) best = s;
+        return best;
+    }
+
+    private int hotCount() {
+        int n = 0;
+        for (State s : undo) if (s.snap != null) n++;
+        for (State s : redo) if (s.snap != null) n++;
+        return n;
+    }
+
+    /** Bring usage under budget: spill cold states, then thin old states, then evict the oldest. */
+    private void trim() {
+        if (spill != null) {
+            int hot = hotCount();
+            while (hot > HOT_STATES || usedBytes > byteBudget) {
+                State victim = coldestHot();
+                if (victim == null || !spillState(victim)) break;
+                hot--;
+            }
+        }
+        while (usedBytes > byteBudget && collapseOldHalf()) { /* keep thinning */ }
+        while (usedBytes > byteBudget && evictOldestSegment()) { /* keep evicting */ }
+
+        if (spill != null) {
+            while (spill.getLiveBytes() > diskBudget && collapseOldHalf()) { /* keep thinning */ }
+            while (spill.getLiveBytes() > diskBudget && evictOldestSegment()) { /* keep evicting */ }
+            try { spill.compactIfSparse(); } catch (IOException ex) { ex.printStackTrace(); disableSpill(); }
+        }
+    }
+
+    /**
+     * Keyframe segments: index of each keyframe in {@code all}; a segment runs from one
+     * keyframe up to (not including) the next.
+     */
+    private static List<Integer> segmentStarts(List<State> all) {
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) if (all.get(i).isKeyframe()) starts.add(i);
+        return starts;
+    }
+
+    /**
+     * Drop every other keyframe segment among those older than the newest KEEP_FINE states,
+     * so undo there jumps several edits at a time. The oldest segment is kept as the anchor.
+     * Returns false when there was nothing left to thin.
+     */
+    private boolean collapseOldHalf() {
+        int coarse = undo.size() - KEEP_FINE;
+        if (coarse < 3) return false;
+        List<State> all = new ArrayList<>(undo);
+        List<Integer> starts = segmentStarts(all);
+        boolean[] drop = new boolean[all.size()];
+        boolean any = false;
+        for (int k = 1; k < starts.size() - 1; k += 2) {
+            int from = starts.get(k), to = starts.get(k + 1);
+            if (to > coarse) break;              // segment reaches into the fine zone
+            for (int i = from; i < to; i++) drop[i] = true;
+            any = true;
+        }
+        if (!any) return false;
         undo.clear();
-        redo.clear();
-        undo.addLast(snapshotTransparent());
+        for (int i = 0; i < all.size(); i++) {
+            if (drop[i]) release(all.get(i)); else undo.addLast(all.get(i));
+        }
+        return true;
+    }
+
+    /** Drop the oldest keyframe and the commands that depend on it, unless it holds the current state. */
+    private boolean evictOldestSegment() {
+        List<State> all = new ArrayList<>(undo);
+        List<Integer> starts = segmentStarts(all);
+        if (starts.size() < 2) return false;
+        int end = starts.get(1);
+        for (int i = 0; i < end; i++) release(undo.removeFirst());
+        return true;
     }
 
-    // --- internals ----
-    private WritableImage snapshotTransparent() {
-        SnapshotParameters sp = new SnapshotParameters();
-        sp.setFill(Color.TRANSPARENT);
-        return state.getBase().snapshot(sp, null);
+    /** Bring the document to the (new) top of the undo stack: nearest keyframe, then replay. */
+    private boolean restoreCurrent() {
+        List<HistoryCommand> replay = new ArrayList<>();
+        State key = null;
+        for (var it = undo.descendingIterator(); it.hasNext(); ) {
+            State s = it.next();
+            if (s.isKeyframe()) { key = s; break; }
+            if (s.cmd == null) return false; // pixels were lost with the spill file
+            replay.add(s.cmd);
+        }
+        if (key == null || !draw(key)) return false;
+        for (int i = replay.size() - 1; i >= 0; i--) replay.get(i).apply(state);
+        return true;
     }
 
-    private void draw(WritableImage img) {
-        GraphicsContext g = state.getBase().getGraphicsContext2D();
-        g.clearRect(0, 0, state.getBase().getWidth(), state.getBase().getHeight()); // true transparent clear
-        g.drawImage(img, 0, 0);
+    private boolean draw(State s) {
+        if (!ensureHot(s)) return false;
+        s.lastUse = ++clock;
+        LayerStack layers = state.getLayers();
+        int[] changed = layers.restore(s.snap, !state.isFixedSize()); // swaps tile references, no pixel copies
+        if (changed == null) {
+            state.layoutRestored();         // layout or size changed
+            return true;
+        }
+        int T = RasterDocument.TILE_SIZE, cols = layers.getTileCols();
+        for (int i : changed) state.invalidate((i % cols) * T, (i / cols) * T, T, T);
+        return true;
     }
 }
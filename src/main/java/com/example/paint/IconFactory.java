@@ -82,6 +82,11 @@ public final class IconFactory {
         return filled("M4 6h2v2H4V6zm4 0h4v2H8V6zm6 0h2v2h-2V6zM4 10h2v4H4v-4zm12 0h2v4h-2v-4zM4 16h2v2H4v-2zm4 0h4v2H8v-2zm6 0h2v2h-2v-2zM11 3h2v2h-2V3zm0 16h2v2h-2v-2z");
     }
 
+    /** Magic wand (stick + sparkle) */
+    public static Node wand() {
+        return filled("M3 19.6L14.6 8l1.4 1.4L4.4 21 3 19.6zM16 2l.9 2.1L19 5l-2.1.9L16 8l-.9-2.1L13 5l2.1-.9L16 2zm4 6l.6 1.4L22 10l-1.4.6L20 12l-.6-1.4L18 10l1.4-.6L20 8z");
+    }
+
     /** Move (4-way arrows) */
     public static Node move() { return filled("M11 2h2l3 3h-2v4h4V7l3 3-3 3v-2h-4v4h2l-3 3h-2l-3-3h2v-4H7v2l-3-3 3-3v2h4V5H8l3-3z"); }
 
@@ -0,0 +1,109 @@
+package com.example.paint;
+
+import java.util.List;
+
+/**
+ * One layer of the document: its own {@link RasterDocument} plus how it is composited.
+ * Properties are changed through {@link LayerStack} so the cached composite stays in sync.
+ * An adjustment layer has no pixels of its own: its {@link Adjustment} chain is applied to
+ * everything below it, mixed in by its opacity (blend modes do not apply).
+ */
+public class Layer {
+
+    /** Separable blend modes (W3C compositing formulas, per 0..255 channel). */
+    public enum Blend {
+        NORMAL, MULTIPLY, SCREEN, OVERLAY, DARKEN, LIGHTEN, ADD, DIFFERENCE;
+
+        /** Blended channel for backdrop b and source s. */
+        int mix(int b, int s) {
+            return switch (this) {
+                case NORMAL -> s;
+                case MULTIPLY -> (b * s + 127) / 255;
+                case SCREEN -> b + s - (b * s + 127) / 255;
+                case OVERLAY -> b < 128 ? (2 * b * s + 127) / 255 : 255 - (2 * (255 - b) * (255 - s) + 127) / 255;
+                case DARKEN -> Math.min(b, s);
+                case LIGHTEN -> Math.max(b, s);
+                case ADD -> Math.min(255, b + s);
+                case DIFFERENCE -> Math.abs(b - s);
+            };
+        }
+
+        /** Composite src (scaled by opacity 0..255) onto dst with this mode. */
+        int composite(int dst, int src, int opacity) {
+            int sa = ((src >>> 24) * opacity + 127) / 255;
+            if (sa == 0) return dst;
+            int rgb = src & 0xFFFFFF;
+            int da = dst >>> 24;
+            if (this != NORMAL && da != 0) {
+                // the blended colour only applies where there is a backdrop
+                int r = channel((dst >>> 16) & 0xFF, (src >>> 16) & 0xFF, da);
+                int g = channel((dst >>> 8) & 0xFF, (src >>> 8) & 0xFF, da);
+                int b = channel(dst & 0xFF, src & 0xFF, da);
+                rgb = (r << 16) | (g << 8) | b;
+            }
+            return ColorUtils.blendOver(dst, (sa << 24) | rgb);
+        }
+
+        private int channel(int b, int s, int da) {
+            return (mix(b, s) * da + s * (255 - da) + 127) / 255;
+        }
+    }
+
+    /** Compositing properties, also what history records per layer; adjustments null = pixel layer. */
+    public record Props(String name, double opacity, boolean visible, Blend blend, List<Adjustment> adjustments) {
+        public Props {
+            if (adjustments != null) adjustments = List.copyOf(adjustments);
+        }
+
+        public Props(String name, double opacity, boolean visible, Blend blend) {
+            this(name, opacity, visible, blend, null);
+        }
+    }
+
+    private final RasterDocument document;
+    private Props props;
+    private PixelKernel kernel;     // fused adjustment chain, built on first use
+
+    Layer(String name, int width, int height) {
+        this(new RasterDocument(width, height), new Props(name, 1.0, true, Blend.NORMAL));
+    }
+
+    Layer(RasterDocument document, Props props) {
+        this.document = document;
+        this.props = props;
+    }
+
+    public RasterDocument getDocument() { return document; }
+    public Props getProps() { return props; }
+    public String getName() { return props.name(); }
+    public double getOpacity() { return props.opacity(); }
+    public boolean isVisible() { return props.visible(); }
+    public Blend getBlend() { return props.blend(); }
+
+    public List<Adjustment> getAdjustments() { return props.adjustments(); }
+    public boolean isAdjustment() { return props.adjustments() != null; }
+
+    void setProps(Props p) {
+        if (!java.util.Objects.equals(p.adjustments(), props.adjustments())) kernel = null;
+        props = p;
+    }
+
+    PixelKernel getKernel() {
+        if (kernel == null) kernel = Adjustment.fuse(props.adjustments());
+        return kernel;
+    }
+
+    /** Contributes nothing to the composite. */
+    boolean isHidden() { return !props.visible() || props.opacity() <= 0; }
+
+    /** Composites exactly as its own pixels (used for the single-layer fast path). */
+    boolean isPlain() {
+        return props.visible() && props.opacity() >= 1 && props.blend() == Blend.NORMAL && !isAdjustment();
+    }
+
+    @Override public String toString() {
+        if (!isAdjustment()) return props.name();
+        return props.name() + " · " + props.adjustments().stream().map(Adjustment::toString)
+                .collect(java.util.stream.Collectors.joining(", "));
+    }
+}
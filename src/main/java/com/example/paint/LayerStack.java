@@ -0,0 +1,440 @@
+package com.example.paint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered layers (index 0 = bottom) with a cached flattened composite.
+ * - Tools paint into the active layer's {@link RasterDocument} (the nearest pixel layer while an
+ *   adjustment layer is active); callers report the touched rectangle via {@link #markDirty}
+ *   and only those composite tiles are recomputed.
+ * - Everything below the active layer is cached flattened as well, so refreshing a tile costs
+ *   one read of that cache plus the layers from the active one up: painting on the top layer
+ *   of a 20-layer document touches two layers per tile, not twenty.
+ * - A single plain layer is displayed directly, with no composite at all.
+ * - Adjustment layers are evaluated lazily with the rest: a parameter change only dirties the
+ *   composite, and each tile is recomputed (one fused pass) when it is next read — for the
+ *   display, only when it is on screen.
+ */
+public class LayerStack {
+    private static final int T = RasterDocument.TILE_SIZE;
+
+    private final List<Layer> layers = new ArrayList<>();
+    private int active;
+    private int width, height, cols, rows;
+    private int nextName = 1;
+
+    // caches; null until more than one plain layer needs compositing
+    private RasterDocument composite, below;
+    private boolean[] dirty, belowDirty;
+    private final int[] buf = new int[T * T], tmp = new int[T * T];
+
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    /** Layers and their properties at one point in time; tiles are shared copy-on-write. */
+    public static final class Snapshot {
+        final RasterDocument.Snapshot[] docs;
+        final Layer.Props[] props;
+        final int active;
+        final int width, height;
+        final int[][] tiles;            // every layer's tiles, bottom layer first
+
+        Snapshot(RasterDocument.Snapshot[] docs, Layer.Props[] props, int active, int width, int height) {
+            this.docs = docs; this.props = props; this.active = active;
+            this.width = width; this.height = height;
+            int n = 0;
+            for (RasterDocument.Snapshot d : docs) n += d.tiles.length;
+            tiles = new int[n][];
+            int k = 0;
+            for (RasterDocument.Snapshot d : docs) {
+                System.arraycopy(d.tiles, 0, tiles, k, d.tiles.length);
+                k += d.tiles.length;
+            }
+        }
+
+        public int getWidth()  { return width; }
+        public int getHeight() { return height; }
+        public int getLayerCount() { return docs.length; }
+
+        /** Same layout with a different flat tile array (null = no pixels, for spilled states). */
+        Snapshot withTiles(int[][] flat) {
+            RasterDocument.Snapshot[] out = new RasterDocument.Snapshot[docs.length];
+            int k = 0;
+            for (int i = 0; i < docs.length; i++) {
+                RasterDocument.Snapshot d = docs[i];
+                int[][] t = new int[d.tiles.length][];
+                if (flat != null) System.arraycopy(flat, k, t, 0, t.length);
+                k += t.length;
+                out[i] = new RasterDocument.Snapshot(d.width, d.height, d.cols, t);
+            }
+            return new Snapshot(out, props, active, width, height);
+        }
+    }
+
+    public LayerStack(int width, int height) {
+        layers.add(new Layer("Background", width, height));
+        setSize(layers.get(0).getDocument().getWidth(), layers.get(0).getDocument().getHeight());
+    }
+
+    private void setSize(int w, int h) {
+        width = w;
+        height = h;
+        cols = (w + T - 1) / T;
+        rows = (h + T - 1) / T;
+        if (composite != null) {
+            composite.resize(w, h);
+            below.resize(w, h);
+            dirty = new boolean[cols * rows];
+            belowDirty = new boolean[cols * rows];
+            markAllDirty(true);
+        }
+    }
+
+    // ---------- Queries ----------
+    public int getWidth()  { return width; }
+    public int getHeight() { return height; }
+    public int getTileCols() { return cols; }
+    public int size() { return layers.size(); }
+    public List<Layer> getLayers() { return Collections.unmodifiableList(layers); }
+    public Layer getLayer(int i) { return layers.get(i); }
+    public int getActiveIndex() { return active; }
+    public Layer getActive() { return layers.get(active); }
+    /**
+     * Pixels that painting and effects go to: the active layer's, or for an adjustment layer
+     * (which has none that show) the nearest pixel layer below it, else above it.
+     */
+    public RasterDocument getActiveDocument() { return layers.get(paintIndex()).getDocument(); }
+
+    private int paintIndex() {
+        for (int i = active; i >= 0; i--) if (!layers.get(i).isAdjustment()) return i;
+        for (int i = active + 1; i < layers.size(); i++) if (!layers.get(i).isAdjustment()) return i;
+        return active;
+    }
+
+    /** Called after any structural or property change (including undo/redo). */
+    public void addListener(Runnable r) { listeners.add(r); }
+
+    private void fireChanged() {
+        for (Runnable r : listeners) r.run();
+    }
+
+    // ---------- Structure ----------
+    /** New empty layer just above the active one; it becomes active. */
+    public Layer addLayer() {
+        Layer l = new Layer("Layer " + nextName++, width, height);
+        layers.add(active + 1, l);
+        active++;
+        markAllDirty(true);
+        fireChanged();
+        return l;
+    }
+
+    /** New adjustment layer applying chain to everything below, just above the active one; it becomes active. */
+    public Layer addAdjustmentLayer(List<Adjustment> chain) {
+        Layer l = new Layer(new RasterDocument(width, height),
+                new Layer.Props("Adjustment " + nextName++, 1.0, true, Layer.Blend.NORMAL, chain));
+        layers.add(active + 1, l);
+        active++;
+        markAllDirty(true);
+        fireChanged();
+        return l;
+    }
+
+    /** Remove layer i (the last remaining layer is kept). */
+    public void removeLayer(int i) {
+        if (layers.size() <= 1 || i < 0 || i >= layers.size()) return;
+        layers.remove(i);
+        if (active >= layers.size() || active > i) active = Math.max(0, active - 1);
+        markAllDirty(true);
+        fireChanged();
+    }
+
+    /** Move layer from → to (both bottom-based indices); the active layer follows its content. */
+    public void moveLayer(int from, int to) {
+        if (from == to || from < 0 || to < 0 || from >= layers.size() || to >= layers.size()) return;
+        Layer activeLayer = getActive();
+        layers.add(to, layers.remove(from));
+        active = layers.indexOf(activeLayer);
+        markAllDirty(true);
+        fireChanged();
+    }
+
+    public void setActive(int i) {
+        if (i < 0 || i >= layers.size() || i == active) return;
+        active = i;
+        if (belowDirty != null) java.util.Arrays.fill(belowDirty, true); // composite itself is unchanged
+        fireChanged();
+    }
+
+    public void setOpacity(int i, double opacity) {
+        Layer.Props p = layers.get(i).getProps();
+        setProps(i, new Layer.Props(p.name(), Math.max(0, Math.min(1, opacity)), p.visible(), p.blend(), p.adjustments()));
+    }
+
+    public void setVisible(int i, boolean visible) {
+        Layer.Props p = layers.get(i).getProps();
+        setProps(i, new Layer.Props(p.name(), p.opacity(), visible, p.blend(), p.adjustments()));
+    }
+
+    public void setBlend(int i, Layer.Blend blend) {
+        Layer.Props p = layers.get(i).getProps();
+        setProps(i, new Layer.Props(p.name(), p.opacity(), p.visible(), blend, p.adjustments()));
+    }
+
+    /** Replace the chain of adjustment layer i. */
+    public void setAdjustments(int i, List<Adjustment> chain) {
+        Layer.Props p = layers.get(i).getProps();
+        if (p.adjustments() == null) return;
+        setProps(i, new Layer.Props(p.name(), p.opacity(), p.visible(), p.blend(), chain));
+    }
+
+    private void setProps(int i, Layer.Props p) {
+        if (p.equals(layers.get(i).getProps())) return;
+        layers.get(i).setProps(p);
+        markAllDirty(i < active);
+        fireChanged();
+    }
+
+    /** Back to one empty layer. */
+    public void reset() {
+        layers.clear();
+        layers.add(new Layer("Background", width, height));
+        active = 0;
+        nextName = 1;
+        markAllDirty(true);
+        fireChanged();
+    }
+
+    public void resize(int newW, int newH) {
+        for (Layer l : layers) l.getDocument().resize(newW, newH);
+        RasterDocument d = layers.get(0).getDocument();
+        setSize(d.getWidth(), d.getHeight());
+    }
+
+    // ---------- Dirty tracking ----------
+    /** The active layer's pixels ({@link #getActiveDocument}) changed inside this rectangle. */
+    public void markDirty(int x, int y, int w, int h) {
+        markLayerDirty(paintIndex(), x, y, w, h);
+    }
+
+    /** Layer i changed inside this rectangle. */
+    public void markLayerDirty(int i, int x, int y, int w, int h) {
+        if (dirty == null) return;
+        int tx0 = Math.max(0, x / T), ty0 = Math.max(0, y / T);
+        int tx1 = Math.min(cols - 1, (x + w - 1) / T), ty1 = Math.min(rows - 1, (y + h - 1) / T);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                dirty[ty * cols + tx] = true;
+                if (i < active) belowDirty[ty * cols + tx] = true;
+            }
+        }
+    }
+
+    private void markAllDirty(boolean includeBelow) {
+        if (dirty == null) return;
+        java.util.Arrays.fill(dirty, true);
+        if (includeBelow) java.util.Arrays.fill(belowDirty, true);
+    }
+
+    // ---------- Composite ----------
+    /** A single plain layer is its own composite. */
+    private boolean direct() {
+        return layers.size() == 1 && layers.get(0).isPlain();
+    }
+
+    /**
+     * The flattened image, with any dirty tiles brought up to date first.
+     * Only tiles marked dirty since the last call are recomposited.
+     */
+    public RasterDocument getComposite() {
+        if (direct()) return layers.get(0).getDocument();
+        ensureCaches();
+        for (int i = 0; i < dirty.length; i++) if (dirty[i]) refreshTile(i);
+        return composite;
+    }
+
+    /** Read a rectangle of the composite, refreshing only the dirty tiles it covers. */
+    public void readComposite(int x, int y, int w, int h, int[] dst, int off, int scan) {
+        if (direct()) { layers.get(0).getDocument().readPixels(x, y, w, h, dst, off, scan); return; }
+        ensureCaches();
+        int tx0 = Math.max(0, x / T), ty0 = Math.max(0, y / T);
+        int tx1 = Math.min(cols - 1, (x + w - 1) / T), ty1 = Math.min(rows - 1, (y + h - 1) / T);
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                if (dirty[ty * cols + tx]) refreshTile(ty * cols + tx);
+            }
+        }
+        composite.readPixels(x, y, w, h, dst, off, scan);
+    }
+
+    /** Composite ARGB at (x,y); transparent outside the document. */
+    public int getCompositeArgb(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return 0;
+        int[] px = new int[1];
+        readComposite(x, y, 1, 1, px, 0, 1);
+        return px[0];
+    }
+
+    /** Whether composite tile i has any pixels (refreshing it first if dirty). */
+    public boolean isCompositeTileAllocated(int i) {
+        if (direct()) return layers.get(0).getDocument().isTileAllocated(i);
+        ensureCaches();
+        if (dirty[i]) refreshTile(i);
+        return composite.isTileAllocated(i);
+    }
+
+    private void ensureCaches() {
+        if (composite != null) return;
+        composite = new RasterDocument(width, height);
+        below = new RasterDocument(width, height);
+        dirty = new boolean[cols * rows];
+        belowDirty = new boolean[cols * rows];
+        markAllDirty(true);
+    }
+
+    /** Recompute composite tile i = below-cache ⊕ layers from the active one up. */
+    private void refreshTile(int i) {
+        int x = (i % cols) * T, y = (i / cols) * T;
+        int w = Math.min(T, width - x), h = Math.min(T, height - y);
+
+        if (belowDirty[i]) {
+            java.util.Arrays.fill(buf, 0);
+            for (int k = 0; k < active; k++) blendLayer(layers.get(k), i, x, y, w, h);
+            store(below, x, y, w, h);
+            belowDirty[i] = false;
+        } else {
+            below.readPixels(x, y, w, h, buf, 0, T);
+        }
+        for (int k = active; k < layers.size(); k++) blendLayer(layers.get(k), i, x, y, w, h);
+        store(composite, x, y, w, h);
+        dirty[i] = false;
+    }
+
+    /** Write buf as one tile of a cache; an all-transparent result releases the tile. */
+    private void store(RasterDocument cache, int x, int y, int w, int h) {
+        boolean empty = true;
+        for (int v : buf) if (v != 0) { empty = false; break; }
+        if (empty) cache.fillRect(x, y, w, h, 0);
+        else cache.writePixels(x, y, w, h, buf, 0, T);
+    }
+
+    private void blendLayer(Layer l, int i, int x, int y, int w, int h) {
+        if (l.isHidden()) return;
+        if (l.isAdjustment()) { adjust(l, w, h); return; }
+        if (!l.getDocument().isTileAllocated(i)) return; // empty tiles add nothing
+        l.getDocument().readPixels(x, y, w, h, tmp, 0, T);
+        Layer.Blend mode = l.getBlend();
+        int op = (int) Math.round(l.getOpacity() * 255);
+        for (int r = 0; r < h; r++) blendRow(mode, op, tmp, buf, r * T, w);
+    }
+
+    /** Run an adjustment layer's fused kernel over the backdrop in buf, mixed in by its opacity. */
+    private void adjust(Layer l, int w, int h) {
+        PixelKernel k = l.getKernel();
+        int op = (int) Math.round(l.getOpacity() * 255);
+        for (int r = 0; r < h; r++) adjustRow(k, op, buf, tmp, r * T, w);
+    }
+
+    /** Composite src[off .. off+len) onto dst with mode at opacity op (0..255). */
+    private static void blendRow(Layer.Blend mode, int op, int[] src, int[] dst, int off, int len) {
+        for (int j = off, end = off + len; j < end; j++) {
+            int s = src[j];
+            if ((s >>> 24) == 0) continue;
+            dst[j] = mode.composite(dst[j], s, op);
+        }
+    }
+
+    /** Apply kernel k to dst[off .. off+len), mixed in by opacity op (0..255); scratch is clobbered. */
+    private static void adjustRow(PixelKernel k, int op, int[] dst, int[] scratch, int off, int len) {
+        if (op >= 255) { k.apply(dst, off, len); return; }
+        System.arraycopy(dst, off, scratch, off, len);
+        k.apply(scratch, off, len);
+        for (int j = off, end = off + len; j < end; j++) {
+            int d = dst[j], s = scratch[j];
+            if (d == s) continue;
+            int rr = (((d >>> 16) & 0xFF) * (255 - op) + ((s >>> 16) & 0xFF) * op + 127) / 255;
+            int gg = (((d >>> 8) & 0xFF) * (255 - op) + ((s >>> 8) & 0xFF) * op + 127) / 255;
+            int bb = ((d & 0xFF) * (255 - op) + (s & 0xFF) * op + 127) / 255;
+            dst[j] = (d & 0xFF000000) | (rr << 16) | (gg << 8) | bb;  // point ops keep alpha
+        }
+    }
+
+    /**
+     * Flatten n pixels the way the composite would, from given pixels per layer: px[k] holds
+     * layer k's pixels at the same n positions (ignored for adjustment layers; null =
+     * transparent). Lets a preview show an edit that has not been made; the caches are untouched.
+     */
+    public void flatten(int[][] px, int n, int[] out) {
+        java.util.Arrays.fill(out, 0, n, 0);
+        int[] scratch = null;
+        for (int k = 0; k < layers.size(); k++) {
+            Layer l = layers.get(k);
+            if (l.isHidden()) continue;
+            int op = (int) Math.round(l.getOpacity() * 255);
+            if (l.isAdjustment()) {
+                if (scratch == null) scratch = new int[n];
+                adjustRow(l.getKernel(), op, out, scratch, 0, n);
+            } else if (px[k] != null) {
+                blendRow(l.getBlend(), op, px[k], out, 0, n);
+            }
+        }
+    }
+
+    // ---------- History ----------
+    public Snapshot snapshot() {
+        RasterDocument.Snapshot[] docs = new RasterDocument.Snapshot[layers.size()];
+        Layer.Props[] props = new Layer.Props[layers.size()];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = layers.get(i).getDocument().snapshot();
+            props[i] = layers.get(i).getProps();
+        }
+        return new Snapshot(docs, props, active, width, height);
+    }
+
+    /**
+     * Make the stack equal to a snapshot again. keepSize keeps the current canvas size (a
+     * window-sized canvas is not part of history); otherwise the snapshot's size comes back too.
+     * Returns the composite tile indices whose pixels may have changed, or null when
+     * the layout changed and everything must be treated as dirty.
+     */
+    public int[] restore(Snapshot snap, boolean keepSize) {
+        boolean sameLayout = snap.docs.length == layers.size() && snap.active == active
+                && snap.width == width && snap.height == height;
+        for (int i = 0; sameLayout && i < snap.props.length; i++) {
+            sameLayout = snap.props[i].equals(layers.get(i).getProps());
+        }
+
+        if (!sameLayout) {
+            int w = width, h = height;
+            layers.clear();
+            for (int i = 0; i < snap.docs.length; i++) {
+                RasterDocument d = new RasterDocument(1, 1);
+                d.restore(snap.docs[i]);
+                layers.add(new Layer(d, snap.props[i]));
+            }
+            active = snap.active;
+            RasterDocument first = layers.get(0).getDocument();
+            setSize(first.getWidth(), first.getHeight());
+            if (keepSize) resize(w, h);     // canvas was resized in between: keep its size
+            markAllDirty(true);
+            fireChanged();
+            return null;
+        }
+
+        boolean[] changed = new boolean[cols * rows];
+        for (int k = 0; k < layers.size(); k++) {
+            for (int i : layers.get(k).getDocument().restore(snap.docs[k])) {
+                changed[i] = true;
+                if (dirty != null) {
+                    dirty[i] = true;
+                    if (k < active) belowDirty[i] = true;
+                }
+            }
+        }
+        int[] out = new int[changed.length];
+        int n = 0;
+        for (int i = 0; i < changed.length; i++) if (changed[i]) out[n++] = i;
+        return java.util.Arrays.copyOf(out, n);
+    }
+}
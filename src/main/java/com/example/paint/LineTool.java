@@ -22,21 +22,39 @@ public class LineTool implements Tool {
     public void onDrag(CanvasState s, HistoryManager h, MouseEvent e) {
         if (!dragging) return;
         ex = e.getX(); ey = e.getY();
-        var g = s.getOverlay().getGraphicsContext2D();
         s.clearOverlay();
-        g.setStroke(s.getStroke());
-        g.setLineWidth(s.getBrush());
-        g.setLineCap(javafx.scene.shape.StrokeLineCap.ROUND);
-        g.strokeLine(sx, sy, ex, ey);
+        draw(s.getOverlay().getGraphicsContext2D(), sx, sy, ex, ey, s.getStroke(), s.getBrush());
     }
 
     @Override
     public void onRelease(CanvasState s, HistoryManager h, MouseEvent e) {
         if (!dragging) return;
         dragging = false;
-        // bake preview to base, then save one history step
-        s.commitOverlay();
-        h.push();
+        // bake the line into the document, then save one history step
+        Segment seg = new Segment(sx, sy, ex, ey, s.getStroke(), s.getBrush());
+        s.clearOverlay();
+        seg.apply(s);
+        h.push(seg);
+    }
+
+    static void draw(GraphicsContext g, double x1, double y1, double x2, double y2, Color color, double width) {
+        g.setStroke(color);
+        g.setLineWidth(width);
+        g.setLineCap(javafx.scene.shape.StrokeLineCap.ROUND);
+        g.setLineDashes(0);
+        g.strokeLine(x1, y1, x2, y2);
+    }
+
+    /** A straight stroke; also used by the polygon tool for each edge. */
+    public record Segment(double x1, double y1, double x2, double y2, Color color, double width)
+            implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            double pad = width / 2 + 1;
+            s.drawToDocument(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad,
+                    Math.abs(x2 - x1) + 2 * pad, Math.abs(y2 - y1) + 2 * pad,
+                    g -> draw(g, x1, y1, x2, y2, color, width));
+        }
     }
 
     @Override
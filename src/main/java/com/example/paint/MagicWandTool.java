@@ -0,0 +1,90 @@
+package com.example.paint;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseEvent;
+
+/**
+ * Selects what a bucket fill at the click would paint (same tolerance, connectivity,
+ * contiguous and sample-all settings) instead of painting it.
+ * - Shift adds to the current selection, Alt subtracts from it
+ * - The result is cached on CanvasState as a {@link RegionMask}, so cut/copy and Move
+ *   touch only those pixels
+ */
+public class MagicWandTool implements Tool {
+
+    private static final int TINT = 0x553399FF; // translucent highlight over selected pixels
+
+    @Override public String getName(){ return "Magic Wand"; }
+
+    @Override
+    public void onPress(CanvasState s, HistoryManager h, MouseEvent e) {
+        int x = (int) Math.floor(e.getX());
+        int y = (int) Math.floor(e.getY());
+        RasterDocument doc = s.getDocument();
+        if (!doc.contains(x, y)) return;
+
+        RasterDocument src = s.isSampleAllLayers() ? s.getLayers().getComposite() : doc;
+        double tol = s.getFillTolerance();
+        FloodFill f = s.isFillContiguous()
+                ? FloodFill.region(src, x, y, tol, s.isFillDiagonalConnectivity())
+                : FloodFill.similar(src, x, y, tol);
+
+        RegionMask picked = f.mask;
+        RegionMask current = s.getSelectionRegion();
+        if (e.isShiftDown() && current != null) picked = current.copy().union(picked);
+        else if (e.isAltDown()) picked = current == null ? null : current.copy().subtract(picked);
+        select(s, picked);
+    }
+
+    @Override
+    public void onCancel(CanvasState s, HistoryManager h) {
+        s.clearOverlay();
+        s.setSelection(null);
+    }
+
+    /** Make m the active selection: lift its pixels (the rest transparent) and highlight it. */
+    static void select(CanvasState s, RegionMask m) {
+        s.clearOverlay();
+        if (m == null || m.isEmpty()) {
+            s.setSelection(null);
+            s.setStatus("Magic wand: nothing selected");
+            return;
+        }
+        int x0 = m.getMinX(), y0 = m.getMinY();
+        int w = m.getMaxX() - x0 + 1, h = m.getMaxY() - y0 + 1;
+
+        s.setSelection(toImage(readMasked(s.getDocument(), m), w, h));
+        s.setSelectionMask(m);
+        s.setSelPos(x0, y0);
+
+        int[] tint = new int[w * h];
+        m.forEachRun((y, a, b) -> java.util.Arrays.fill(tint, (y - y0) * w + a - x0, (y - y0) * w + b - x0 + 1, TINT));
+        s.drawOverlayImage(toImage(tint, w, h), x0, y0);
+        SelectTool.drawMarquee(s.getOverlay().getGraphicsContext2D(), x0, y0, w, h);
+        s.setStatus(String.format("Selected %,d px (Shift adds, Alt subtracts; Ctrl+C / Ctrl+X)", m.count()));
+    }
+
+    /** The mask's bounding box from doc, with every unmasked pixel transparent. */
+    static int[] readMasked(RasterDocument doc, RegionMask m) {
+        int x0 = m.getMinX(), y0 = m.getMinY();
+        int w = m.getMaxX() - x0 + 1, h = m.getMaxY() - y0 + 1;
+        int[] px = new int[w * h];
+        doc.readPixels(x0, y0, w, h, px, 0, w);
+        for (int y = y0; y < y0 + h; y++) {
+            int row = (y - y0) * w - x0;
+            for (int x = m.next(y, x0, x0 + w, false); x < x0 + w; ) {
+                int end = m.next(y, x, x0 + w, true);
+                java.util.Arrays.fill(px, row + x, row + end, 0);
+                x = m.next(y, end, x0 + w, false);
+            }
+        }
+        return px;
+    }
+
+    static WritableImage toImage(int[] px, int w, int h) {
+        WritableImage img = new WritableImage(w, h);
+        img.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), px, 0, w);
+        return img;
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.paint;
+
+import java.util.Arrays;
+
+/**
+ * Downsampled copies of the flattened layers for zoomed-out display.
+ * - Level n holds the composite at 1/2^n size (n = 1..LEVELS), in the usual 256-pixel tiles
+ * - A mip tile is built on first use from the four tiles of the level below (2x2 box filter,
+ *   alpha-weighted so transparent pixels do not darken edges)
+ * - Edits mark only the mip tiles covering them dirty; they are rebuilt when next read
+ * - Fully transparent areas stay null at every level
+ */
+class MipPyramid {
+    static final int LEVELS = 3;
+    private static final int T = RasterDocument.TILE_SIZE;
+
+    private final LayerStack layers;
+    private int width = -1, height = -1;
+    private final int[] cols = new int[LEVELS + 1], rows = new int[LEVELS + 1];
+    private final int[][][] tiles = new int[LEVELS + 1][][]; // [level][tile] argb, null = transparent
+    private final boolean[][] dirty = new boolean[LEVELS + 1][]; // also "not built yet"
+    private final int[] scratch = new int[T * T];            // one composite tile (level 0)
+
+    MipPyramid(LayerStack layers) {
+        this.layers = layers;
+    }
+
+    /** Coarsest level whose resolution is still at least the screen's at this zoom. */
+    static int levelFor(double zoom) {
+        int level = 0;
+        while (level < LEVELS && zoom <= 0.5 / (1 << level)) level++;
+        return level;
+    }
+
+    /** The composite changed inside this document rectangle. */
+    void markDirty(int x, int y, int w, int h) {
+        if (sync() || w <= 0 || h <= 0) return;
+        for (int l = 1; l <= LEVELS; l++) {
+            int span = T << l;
+            int tx0 = Math.max(0, x / span), ty0 = Math.max(0, y / span);
+            int tx1 = Math.min(cols[l] - 1, (x + w - 1) / span), ty1 = Math.min(rows[l] - 1, (y + h - 1) / span);
+            for (int ty = ty0; ty <= ty1; ty++)
+                for (int tx = tx0; tx <= tx1; tx++) dirty[l][ty * cols[l] + tx] = true;
+        }
+    }
+
+    /** Whether mip tile (tx,ty) of a level has any pixels (builds it if needed). */
+    boolean isAllocated(int level, int tx, int ty) {
+        sync();
+        return tile(level, tx, ty) != null;
+    }
+
+    /**
+     * Copy a rectangle of one mip tile (tile-local pixel coordinates) into dst.
+     * Transparent tiles read as zeros.
+     */
+    void read(int level, int tx, int ty, int x, int y, int w, int h, int[] dst, int off, int scan) {
+        sync();
+        int[] t = tile(level, tx, ty);
+        for (int r = 0; r < h; r++) {
+            if (t == null) Arrays.fill(dst, off + r * scan, off + r * scan + w, 0);
+            else System.arraycopy(t, (y + r) * T + x, dst, off + r * scan, w);
+        }
+    }
+
+    // ---------- Building ----------
+    /** Follow document size changes; everything is rebuilt lazily afterwards. */
+    private boolean sync() {
+        int w = layers.getWidth(), h = layers.getHeight();
+        if (w == width && h == height) return false;
+        width = w;
+        height = h;
+        cols[0] = (w + T - 1) / T;
+        rows[0] = (h + T - 1) / T;
+        for (int l = 1; l <= LEVELS; l++) {
+            cols[l] = (cols[l - 1] + 1) / 2;
+            rows[l] = (rows[l - 1] + 1) / 2;
+            tiles[l] = new int[cols[l] * rows[l]][];
+            dirty[l] = new boolean[cols[l] * rows[l]];
+            Arrays.fill(dirty[l], true);
+        }
+        return true;
+    }
+
+    private int[] tile(int level, int tx, int ty) {
+        int i = ty * cols[level] + tx;
+        if (dirty[level][i]) {
+            tiles[level][i] = build(level, tx, ty, tiles[level][i]);
+            dirty[level][i] = false;
+        }
+        return tiles[level][i];
+    }
+
+    /** Reduce the (up to) four child tiles of the level below into one tile; null if all are empty. */
+    private int[] build(int level, int tx, int ty, int[] reuse) {
+        int[] out = null;
+        int below = level - 1;
+        int bw = (width + (1 << below) - 1) >> below, bh = (height + (1 << below) - 1) >> below;
+        for (int q = 0; q < 4; q++) {
+            int cx = 2 * tx + (q & 1), cy = 2 * ty + (q >> 1);
+            if (cx >= cols[below] || cy >= rows[below]) continue;
+            int[] src;
+            int sw = Math.min(T, bw - cx * T), sh = Math.min(T, bh - cy * T);
+            if (below == 0) {
+                if (!layers.isCompositeTileAllocated(cy * cols[0] + cx)) continue;
+                layers.readComposite(cx * T, cy * T, sw, sh, scratch, 0, T);
+                src = scratch;
+            } else {
+                src = tile(below, cx, cy);
+                if (src == null) continue;
+            }
+            if (out == null) {
+                out = reuse != null ? reuse : new int[T * T];
+                Arrays.fill(out, 0);
+            }
+            reduce(src, sw, sh, out, (q & 1) * T / 2, (q >> 1) * T / 2);
+        }
+        return out;
+    }
+
+    /** 2x2 box filter of a sw×sh region (stride T) into dst at (ox,oy); odd edges reuse the last pixel. */
+    private static void reduce(int[] src, int sw, int sh, int[] dst, int ox, int oy) {
+        for (int y = 0; y < (sh + 1) / 2; y++) {
+            int r0 = 2 * y * T, r1 = Math.min(2 * y + 1, sh - 1) * T;
+            int d = (oy + y) * T + ox;
+            for (int x = 0; x < (sw + 1) / 2; x++) {
+                int c0 = 2 * x, c1 = Math.min(2 * x + 1, sw - 1);
+                dst[d + x] = average(src[r0 + c0], src[r0 + c1], src[r1 + c0], src[r1 + c1]);
+            }
+        }
+    }
+
+    /** Alpha-weighted mean of four non-premultiplied ARGB pixels. */
+    private static int average(int p0, int p1, int p2, int p3) {
+        int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+        int a = a0 + a1 + a2 + a3;
+        if (a == 0) return 0;
+        int half = a / 2;
+        int r = (((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1 + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3 + half) / a;
+        int g = (((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1 + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3 + half) / a;
+        int b = ((p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3 + half) / a;
+        return ((a + 2) / 4) << 24 | r << 16 | g << 8 | b;
+    }
+}
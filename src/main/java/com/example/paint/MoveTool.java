@@ -1,9 +1,7 @@
 package com.example.paint;
 
-import javafx.scene.SnapshotParameters;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseEvent;
-import javafx.scene.paint.Color;
 
 public class MoveTool implements Tool {
     private double mx, my;          // mouse anchor (set on press)
@@ -15,6 +13,8 @@ public class MoveTool implements Tool {
     private double origX, origY;    // selection top-left at press
     private double currX, currY;    // ghost top-left while dragging
     private double selW, selH;
+    private RegionMask liftMask;    // shaped selection being moved; null = whole rectangle
+    private int[] liftPx;           // its original bbox pixels, for restoring
 
     @Override public String getName(){ return "Move"; }
 
@@ -48,17 +48,25 @@ public class MoveTool implements Tool {
         selW  = s.getSelection().getWidth();
         selH  = s.getSelection().getHeight();
 
-        // fresh snapshot from base to avoid duplication on repeated moves
-        SnapshotParameters sp = new SnapshotParameters();
-        sp.setFill(Color.TRANSPARENT);
-        WritableImage full = s.getBase().snapshot(sp, null);
-        selImg = new WritableImage(full.getPixelReader(), (int)origX, (int)origY, (int)selW, (int)selH);
+        // fresh copy from the document to avoid duplication on repeated moves
+        RasterDocument doc = s.getDocument();
+        liftMask = s.getSelectionMask();
+        if (liftMask != null) {
+            // shaped selection: lift and clear only the masked pixels
+            liftPx = new int[(int)selW * (int)selH];
+            doc.readPixels((int)origX, (int)origY, (int)selW, (int)selH, liftPx, 0, (int)selW);
+            selImg = MagicWandTool.toImage(MagicWandTool.readMasked(doc, liftMask), (int)selW, (int)selH);
+            liftMask.forEachRun((y, x0, x1) -> doc.fillRect(x0, y, x1 - x0 + 1, 1, 0x00000000));
+        } else {
+            liftPx = null;
+            selImg = doc.toImage((int)origX, (int)origY, (int)selW, (int)selH);
+            // cut original pixels from the document
+            doc.fillRect((int)origX, (int)origY, (int)selW, (int)selH, 0x00000000);
+        }
 
         currX = origX;
         currY = origY;
-
-        // cut original pixels from base
-        s.getBase().getGraphicsContext2D().clearRect(origX, origY, selW, selH);
+        s.invalidate((int)origX, (int)origY, (int)selW, (int)selH);
 
         // draw ghost + marquee on overlay
         s.clearOverlay();
@@ -90,14 +98,17 @@ public class MoveTool implements Tool {
         dragging = false;
 
         if (moved) {
-            // commit only the ghost (no marquee)
+            // commit only the ghost (no marquee), snapped to whole pixels
             s.clearOverlay();
-            s.drawOverlayImage(selImg, currX, currY);
-            s.commitOverlay();
+            currX = Math.round(currX);
+            currY = Math.round(currY);
+            s.getDocument().drawImage(selImg, (int)currX, (int)currY);
+            s.invalidate((int)currX, (int)currY, (int)selW, (int)selH);
             h.push();
 
             // keep selection active at new spot; redraw marquee
             s.setSelection(selImg);
+            if (liftMask != null) s.setSelectionMask(liftMask.shifted((int)(currX - origX), (int)(currY - origY)));
             s.setSelPos(currX, currY);
             SelectTool.drawMarquee(s.getOverlay().getGraphicsContext2D(), currX, currY, selW, selH);
 
@@ -106,9 +117,10 @@ public class MoveTool implements Tool {
         } else {
             // restore original pixels (no history)
             s.clearOverlay();
-            s.getBase().getGraphicsContext2D().drawImage(selImg, origX, origY);
+            restoreOriginal(s);
 
             s.setSelection(selImg);
+            s.setSelectionMask(liftMask);
             s.setSelPos(origX, origY);
             SelectTool.drawMarquee(s.getOverlay().getGraphicsContext2D(), origX, origY, selW, selH);
 
@@ -121,9 +133,10 @@ public class MoveTool implements Tool {
     public void onCancel(CanvasState s, HistoryManager h) {
         if (!dragging || selImg == null) { dragging = false; return; }
         s.clearOverlay();
-        s.getBase().getGraphicsContext2D().drawImage(selImg, origX, origY);
+        restoreOriginal(s);
         // keep selection at original spot (with marquee while still in Move)
         s.setSelection(selImg);
+        s.setSelectionMask(liftMask);
         s.setSelPos(origX, origY);
         SelectTool.drawMarquee(s.getOverlay().getGraphicsContext2D(), origX, origY, selW, selH);
         selImg = null;
@@ -136,7 +149,7 @@ public class MoveTool implements Tool {
         // If a drag was mid-flight, restore pixels first
         if (dragging && selImg != null) {
             s.clearOverlay();
-            s.getBase().getGraphicsContext2D().drawImage(selImg, origX, origY);
+            restoreOriginal(s);
         }
         // ALWAYS remove marquee and clear active selection when leaving Move
         s.clearOverlay();
@@ -146,4 +159,17 @@ public class MoveTool implements Tool {
         selImg = null;
         s.setStatus("Move: deselected");
     }
+
+    /** Put the lifted pixels back exactly where they came from. */
+    private void restoreOriginal(CanvasState s) {
+        RasterDocument doc = s.getDocument();
+        if (liftMask != null) {
+            int ox = (int)origX, oy = (int)origY, w = (int)selW;
+            liftMask.forEachRun((y, x0, x1) ->
+                    doc.writePixels(x0, y, x1 - x0 + 1, 1, liftPx, (y - oy) * w + x0 - ox, w));
+        } else {
+            doc.writeImage(selImg, (int)origX, (int)origY);
+        }
+        s.invalidate((int)origX, (int)origY, (int)selW, (int)selH);
+    }
 }
@@ -1,17 +1,24 @@
 package com.example.paint;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
+import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.input.KeyCombination;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 public class PaintApp extends Application {
@@ -35,6 +42,7 @@ public class PaintApp extends Application {
     private final SprayTool spray = new SprayTool();
     private final BucketFillTool bucket = new BucketFillTool();
     private final SelectTool select = new SelectTool();
+    private final MagicWandTool wand = new MagicWandTool();
     private final MoveTool move = new MoveTool();
     private final EyedropperTool dropper = new EyedropperTool();
     private final TextTool text = new TextTool();
@@ -80,15 +88,15 @@ public class PaintApp extends Application {
         // --- Global accelerators ---
         scene.getAccelerators().put(
                 new KeyCodeCombination(KeyCode.C, KeyCombination.SHORTCUT_DOWN),
-                () -> { if (currentTool instanceof SelectTool st) st.copySelection(state); }
+                () -> { if (selecting()) select.copySelection(state); }
         );
         scene.getAccelerators().put(
                 new KeyCodeCombination(KeyCode.X, KeyCombination.SHORTCUT_DOWN),
-                () -> { if (currentTool instanceof SelectTool st) st.cutSelection(state, history); }
+                () -> { if (selecting()) select.cutSelection(state, history); }
         );
         scene.getAccelerators().put(
                 new KeyCodeCombination(KeyCode.V, KeyCombination.SHORTCUT_DOWN),
-                () -> { if (currentTool instanceof SelectTool st) st.pasteFromClipboard(state, history); }
+                () -> { if (selecting()) select.pasteFromClipboard(state, history); }
         );
         scene.getAccelerators().put(
                 new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN),
@@ -103,13 +111,13 @@ public class PaintApp extends Application {
                 () -> history.redo()
         );
 
-        // Optional fallback only for Select ops
+        // Optional fallback only for Select / Magic Wand ops
         scene.addEventFilter(javafx.scene.input.KeyEvent.KEY_PRESSED, e -> {
             if (!e.isShortcutDown()) return;
             switch (e.getCode()) {
-                case C -> { if (currentTool instanceof SelectTool st) { st.copySelection(state); e.consume(); } }
-                case X -> { if (currentTool instanceof SelectTool st) { st.cutSelection(state, history); e.consume(); } }
-                case V -> { if (currentTool instanceof SelectTool st) { st.pasteFromClipboard(state, history); e.consume(); } }
+                case C -> { if (selecting()) { select.copySelection(state); e.consume(); } }
+                case X -> { if (selecting()) { select.cutSelection(state, history); e.consume(); } }
+                case V -> { if (selecting()) { select.pasteFromClipboard(state, history); e.consume(); } }
                 default -> {}
             }
         });
@@ -121,10 +129,13 @@ public class PaintApp extends Application {
             ));
         } catch (Exception ignore) {}
 
-        // Route drawing events to current tool (overlay handles input)
-        state.getOverlay().setOnMousePressed(e -> { if (currentTool != null) currentTool.onPress(state, history, e); });
-        state.getOverlay().setOnMouseDragged(e -> { if (currentTool != null) currentTool.onDrag(state, history, e); });
-        state.getOverlay().setOnMouseReleased(e -> { if (currentTool != null) currentTool.onRelease(state, history, e); });
+        // Route drawing events to current tool (the input surface sits above the overlay)
+        var input = state.getInputSurface();
+        input.setOnMousePressed(e -> { if (currentTool != null) currentTool.onPress(state, history, e); });
+        input.setOnMouseDragged(e -> { if (currentTool != null) currentTool.onDrag(state, history, e); });
+        input.setOnMouseReleased(e -> { if (currentTool != null) currentTool.onRelease(state, history, e); });
+        input.setOnMouseMoved(e -> { if (currentTool instanceof Hoverable hv) hv.onMove(state, e.getSceneX(), e.getSceneY()); });
+        input.setOnMouseExited(e -> { if (currentTool instanceof Hoverable hv) hv.onExit(state); });
 
         // Non-accelerator keys (digits for tool switch, Esc/Enter)
         scene.setOnKeyPressed(e -> {
@@ -163,6 +174,11 @@ public class PaintApp extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        if (history != null) history.dispose(); // removes the undo spill file
+    }
+
     private HBox buildAppBar(Stage stage) {
         Label title = new Label("NovaPaint");
         title.getStyleClass().add("app-title");
@@ -172,7 +188,7 @@ public class PaintApp extends Application {
             FileChooser fc = new FileChooser();
             fc.getExtensionFilters().add(new FileChooser.ExtensionFilter("Images", "*.png","*.jpg","*.jpeg"));
             var f = fc.showOpenDialog(stage);
-            if (f != null) state.openImage(f);
+            if (f != null) { state.openImage(f); history.push(); } // new pixels → keyframe
         });
 
         Button save = topButton(IconFactory.save(), "Save (Ctrl+S)");
@@ -184,6 +200,9 @@ public class PaintApp extends Application {
             if (f != null) state.saveImage(f);
         });
 
+        MenuButton image = buildImageMenu();
+        MenuButton effects = buildEffectsMenu();
+
         Button undo = topButton(IconFactory.undo(), "Undo (Ctrl+Z)");
         undo.setOnAction(e -> history.undo());
         Button redo = topButton(IconFactory.redo(), "Redo (Ctrl+Y)");
@@ -205,7 +224,7 @@ public class PaintApp extends Application {
         Region spacer = new Region();
         HBox.setHgrow(spacer, Priority.ALWAYS);
 
-        HBox bar = new HBox(10, title, spacer, open, save, new Separator(),
+        HBox bar = new HBox(10, title, spacer, open, save, new Separator(), image, effects, new Separator(),
                 undo, redo, new Separator(), clear, new Separator(), theme);
         bar.getStyleClass().add("appbar");
         bar.setPadding(new Insets(10,12,10,12));
@@ -223,12 +242,13 @@ public class PaintApp extends Application {
         IconToggleButton bSpray   = toolBtn(IconFactory.spray(),   "Spray (7)",   spray);   bSpray.getStyleClass().add("accent-teal");
         IconToggleButton bBucket  = toolBtn(IconFactory.bucket(),  "Bucket (8)",  bucket);  bBucket.getStyleClass().add("accent-blue");
         IconToggleButton bSelect  = toolBtn(IconFactory.select(),  "Select (9)",  select);  bSelect.getStyleClass().add("accent-orange");
+        IconToggleButton bWand    = toolBtn(IconFactory.wand(),    "Magic Wand",  wand);    bWand.getStyleClass().add("accent-orange");
         IconToggleButton bMove    = toolBtn(IconFactory.move(),    "Move (0)",    move);    bMove.getStyleClass().add("accent-lime");
         IconToggleButton bPicker  = toolBtn(IconFactory.dropper(), "Eyedropper",  dropper); bPicker.getStyleClass().add("accent-pink");
         IconToggleButton bText    = toolBtn(IconFactory.text(),    "Text",        text);    bText.getStyleClass().add("accent-sky");
         IconToggleButton bHand    = toolBtn(IconFactory.hand(),    "Pan (hold SPACE)", hand); bHand.getStyleClass().add("accent-slate");
 
-        VBox box = new VBox(6, bPencil,bEraser,bLine,bRect,bEllipse,bPoly,bSpray,bBucket,bSelect,bMove,bPicker,bText,bHand);
+        VBox box = new VBox(6, bPencil,bEraser,bLine,bRect,bEllipse,bPoly,bSpray,bBucket,bSelect,bWand,bMove,bPicker,bText,bHand);
         box.getStyleClass().add("tool-rail");
         box.setPadding(new Insets(10));
         return box;
@@ -286,7 +306,12 @@ public class PaintApp extends Application {
         diag.setSelected(state.isFillDiagonalConnectivity());
         diag.selectedProperty().addListener((obs, o, v) -> state.fillDiagonalConnectivityProperty().set(v));
 
-        Spinner<Integer> expand = new Spinner<>(0, 3, state.getFillExpandPixels());
+        CheckBox contiguous = new CheckBox("Contiguous (off: replace colour everywhere)");
+        contiguous.setSelected(state.isFillContiguous());
+        contiguous.selectedProperty().addListener((obs, o, v) -> state.fillContiguousProperty().set(v));
+
+        // negative values contract the fill away from its border
+        Spinner<Integer> expand = new Spinner<>(-FloodFill.MAX_EXPAND, FloodFill.MAX_EXPAND, state.getFillExpandPixels());
         expand.setEditable(false);
         expand.valueProperty().addListener((obs, o, v) -> state.fillExpandPixelsProperty().set(v));
 
@@ -296,12 +321,13 @@ public class PaintApp extends Application {
         VBox textCard   = card(textHdr, fontRow1, fontRow2, fontRow3); // <-- include fontRow3
         VBox bucketCard = card(bucketHdr,
                 new HBox(10, new Label("Tolerance"), tol),
-                new HBox(10, new Label("Expand px"), expand),
-                diag
+                new HBox(10, new Label("Expand / contract px"), expand),
+                diag,
+                contiguous
         );
 
         // Put all cards into a VBox
-        VBox content = new VBox(16, strokeCard, fillCard, brushCard, textCard, bucketCard);
+        VBox content = new VBox(16, buildLayersCard(), buildHistogramCard(), strokeCard, fillCard, brushCard, textCard, bucketCard);
         content.getStyleClass().add("prop-pane");
         content.setPadding(new Insets(14));
 
@@ -317,6 +343,214 @@ public class PaintApp extends Application {
         return sp;
     }
 
+    /**
+     * Layer list (top layer first) with the active layer's opacity, visibility and blend mode.
+     * The fx menu adds an adjustment step (to the active adjustment layer, or as a new one).
+     */
+    private VBox buildLayersCard() {
+        Label layersHdr = new Label("Layers");
+        layersHdr.getStyleClass().add("section");
+        LayerStack layers = state.getLayers();
+
+        ListView<Layer> list = new ListView<>();
+        list.setPrefHeight(140);
+        Slider opacity = new Slider(0, 1, 1);
+        CheckBox visible = new CheckBox("Visible");
+        ComboBox<Layer.Blend> blend = new ComboBox<>();
+        blend.getItems().addAll(Layer.Blend.values());
+        Slider amount = new Slider(-1, 1, 0);         // last step with an amount, of an adjustment layer
+        Label amountLbl = new Label("Amount");
+        CheckBox sampleAll = new CheckBox("Bucket / Eyedropper sample all layers");
+        sampleAll.selectedProperty().bindBidirectional(state.sampleAllLayersProperty());
+
+        boolean[] syncing = {false}; // ignore control events while mirroring the stack
+        Runnable refresh = () -> {
+            syncing[0] = true;
+            List<Layer> topFirst = new ArrayList<>(layers.getLayers());
+            Collections.reverse(topFirst);
+            list.getItems().setAll(topFirst);
+            list.getSelectionModel().select(layers.size() - 1 - layers.getActiveIndex());
+            Layer a = layers.getActive();
+            opacity.setValue(a.getOpacity());
+            visible.setSelected(a.isVisible());
+            blend.setValue(a.getBlend());
+            int step = lastAmountStep(a);
+            amount.setDisable(step < 0);
+            amountLbl.setDisable(step < 0);
+            if (step >= 0) amount.setValue(a.getAdjustments().get(step).amount());
+            blend.setDisable(a.isAdjustment());
+            if (a.isAdjustment()) state.setStatus("Adjustment layer: its steps apply to everything below it");
+            syncing[0] = false;
+        };
+        layers.addListener(refresh);
+        refresh.run();
+
+        list.getSelectionModel().selectedIndexProperty().addListener((obs, o, v) -> {
+            if (syncing[0] || v.intValue() < 0) return;
+            layers.setActive(layers.size() - 1 - v.intValue());
+            history.push(); // tools replay onto the active layer, so switching is a step
+        });
+        opacity.valueProperty().addListener((obs, o, v) -> {
+            if (syncing[0]) return;
+            layers.setOpacity(layers.getActiveIndex(), v.doubleValue());
+            state.invalidateAll();
+        });
+        recordChanges(opacity, syncing); // one step per drag, key press or track click
+        visible.selectedProperty().addListener((obs, o, v) -> {
+            if (syncing[0]) return;
+            layers.setVisible(layers.getActiveIndex(), v);
+            state.invalidateAll();
+            history.push();
+        });
+        blend.valueProperty().addListener((obs, o, v) -> {
+            if (syncing[0] || v == null) return;
+            layers.setBlend(layers.getActiveIndex(), v);
+            state.invalidateAll();
+            history.push();
+        });
+
+        amount.valueProperty().addListener((obs, o, v) -> {
+            if (syncing[0]) return;
+            Layer a = layers.getActive();
+            int step = lastAmountStep(a);
+            if (step < 0) return;
+            List<Adjustment> chain = new ArrayList<>(a.getAdjustments());
+            chain.set(step, new Adjustment(chain.get(step).kind(), v.doubleValue()));
+            layers.setAdjustments(layers.getActiveIndex(), chain);
+            state.invalidateAll();                   // only on-screen tiles are recomputed now
+        });
+        recordChanges(amount, syncing);
+
+        MenuButton fx = new MenuButton("fx");
+        for (Adjustment.Kind kind : Adjustment.Kind.values()) {
+            MenuItem item = new MenuItem(kind.toString());
+            item.setOnAction(e -> {
+                Layer a = layers.getActive();
+                if (a.isAdjustment()) {
+                    List<Adjustment> chain = new ArrayList<>(a.getAdjustments());
+                    chain.add(Adjustment.of(kind));
+                    layers.setAdjustments(layers.getActiveIndex(), chain);
+                    refresh.run();
+                } else {
+                    layers.addAdjustmentLayer(List.of(Adjustment.of(kind)));
+                }
+                state.invalidateAll();
+                history.push();
+            });
+            fx.getItems().add(item);
+        }
+        fx.setFocusTraversable(false);
+
+        Button add = new Button("+");
+        add.setOnAction(e -> { layers.addLayer(); state.invalidateAll(); history.push(); });
+        Button remove = new Button("−");
+        remove.setOnAction(e -> { layers.removeLayer(layers.getActiveIndex()); state.invalidateAll(); history.push(); });
+        Button up = new Button("▲");
+        up.setOnAction(e -> {
+            int i = layers.getActiveIndex();
+            if (i + 1 >= layers.size()) return;
+            layers.moveLayer(i, i + 1);
+            state.invalidateAll();
+            history.push();
+        });
+        Button down = new Button("▼");
+        down.setOnAction(e -> {
+            int i = layers.getActiveIndex();
+            if (i == 0) return;
+            layers.moveLayer(i, i - 1);
+            state.invalidateAll();
+            history.push();
+        });
+        for (Button b : new Button[]{add, remove, up, down}) b.setFocusTraversable(false);
+
+        HBox buttons = new HBox(6, add, remove, up, down, fx);
+        buttons.setAlignment(Pos.CENTER_LEFT);
+        var opacityRow = new HBox(10, new Label("Opacity"), opacity);
+        opacityRow.setAlignment(Pos.CENTER_LEFT);
+        var blendRow = new HBox(10, new Label("Blend"), blend, visible);
+        blendRow.setAlignment(Pos.CENTER_LEFT);
+        var amountRow = new HBox(10, amountLbl, amount);
+        amountRow.setAlignment(Pos.CENTER_LEFT);
+        return card(layersHdr, list, buttons, opacityRow, blendRow, amountRow, sampleAll);
+    }
+
+    /**
+     * Live histogram of the active layer (R, G, B filled, luminance as a line, square-root
+     * scale). Checked every frame but only redrawn when the counts changed; painting recounts
+     * just the touched tiles.
+     */
+    private VBox buildHistogramCard() {
+        Label hdr = new Label("Histogram");
+        hdr.getStyleClass().add("section");
+        Canvas plot = new Canvas(Histogram.BINS, 90);
+        Label info = new Label();
+        long[] drawn = {-1};
+        new AnimationTimer() {
+            @Override public void handle(long now) {
+                Histogram hist = state.getHistogram();
+                if (hist.getVersion() == drawn[0]) return;
+                drawn[0] = hist.getVersion();
+                drawHistogram(plot.getGraphicsContext2D(), hist.counts(), plot.getWidth(), plot.getHeight());
+                info.setText(String.format("%,d painted px", hist.total()));
+            }
+        }.start();
+        return card(hdr, plot, info);
+    }
+
+    private static void drawHistogram(GraphicsContext g, long[] counts, double w, double h) {
+        int bins = Histogram.BINS;
+        g.clearRect(0, 0, w, h);
+        double max = 1;
+        for (long n : counts) max = Math.max(max, Math.sqrt(n));
+        Color[] fills = {Color.rgb(230, 60, 60, 0.45), Color.rgb(60, 180, 80, 0.45), Color.rgb(60, 110, 230, 0.45)};
+        for (int ch = 0; ch < 4; ch++) {
+            g.beginPath();
+            if (ch < 3) g.moveTo(0, h);
+            for (int v = 0; v < bins; v++) {
+                double x = (v + 0.5) * w / bins, y = h - h * Math.sqrt(counts[ch * bins + v]) / max;
+                if (ch == 3 && v == 0) g.moveTo(x, y);
+                else g.lineTo(x, y);
+            }
+            if (ch < 3) {
+                g.lineTo(w, h);
+                g.closePath();
+                g.setFill(fills[ch]);
+                g.fill();
+            } else {
+                g.setStroke(Color.rgb(40, 40, 40, 0.9));
+                g.setLineWidth(1);
+                g.stroke();
+            }
+        }
+    }
+
+    /**
+     * One history step per committed change of slider s: when a drag ends, or at once for keys and
+     * track clicks. Registered after the slider's own listener; a value set while syncing (or a
+     * change that ends where it started) records nothing.
+     */
+    private void recordChanges(Slider s, boolean[] syncing) {
+        double[] committed = {s.getValue()};
+        Runnable commit = () -> {
+            if (s.getValue() == committed[0]) return;
+            committed[0] = s.getValue();
+            history.push();
+        };
+        s.valueChangingProperty().addListener((obs, was, now) -> { if (!now) commit.run(); });
+        s.valueProperty().addListener((obs, o, v) -> {
+            if (syncing[0]) committed[0] = v.doubleValue();
+            else if (!s.isValueChanging()) commit.run();
+        });
+    }
+
+    /** Index of the last step of an adjustment layer that has an amount, or -1. */
+    private static int lastAmountStep(Layer l) {
+        if (!l.isAdjustment()) return -1;
+        List<Adjustment> chain = l.getAdjustments();
+        for (int i = chain.size() - 1; i >= 0; i--) if (chain.get(i).kind().hasAmount()) return i;
+        return -1;
+    }
+
     private VBox card(javafx.scene.Node... children) {
         VBox box = new VBox(8, children);
         box.getStyleClass().add("card");
@@ -344,6 +578,154 @@ public class PaintApp extends Application {
         return b;
     }
 
+    /** Image size: scale the whole document, or just the selection. */
+    private MenuButton buildImageMenu() {
+        MenuItem resize = new MenuItem("Resize Image…");
+        resize.setOnAction(e -> {
+            LayerStack layers = state.getLayers();
+            askSize("Resize Image", layers.getWidth(), layers.getHeight()).ifPresent(c -> {
+                long t0 = System.nanoTime();
+                state.resampleImage(c.w(), c.h(), c.method());
+                history.push(); // new size and pixels → keyframe
+                state.setStatus(String.format("Resized to %d×%d (%s, %.0f ms)", c.w(), c.h(), c.method(),
+                        (System.nanoTime() - t0) / 1e6));
+            });
+        });
+        MenuItem scaleSel = new MenuItem("Scale Selection…");
+        scaleSel.setOnAction(e -> {
+            if (state.getSelection() == null) { state.setStatus("Select something to scale first"); return; }
+            askSize("Scale Selection", (int) state.getSelection().getWidth(), (int) state.getSelection().getHeight())
+                    .ifPresent(c -> SelectTool.scaleSelection(state, history, c.w(), c.h(), c.method()));
+        });
+
+        MenuButton m = new MenuButton("Image");
+        m.getItems().addAll(resize, scaleSel);
+        m.setFocusTraversable(false);
+        return m;
+    }
+
+    private record SizeChoice(int w, int h, Resampler.Method method) { }
+
+    /** Modal width × height prompt (aspect ratio locked by default) with a resampling filter; empty if cancelled. */
+    private java.util.Optional<SizeChoice> askSize(String title, int w0, int h0) {
+        int max = 32768;
+        Spinner<Integer> w = new Spinner<>(1, max, w0), h = new Spinner<>(1, max, h0);
+        w.setEditable(true);
+        h.setEditable(true);
+        CheckBox lock = new CheckBox("Keep aspect ratio");
+        lock.setSelected(true);
+        boolean[] syncing = {false};
+        w.valueProperty().addListener((o, a, v) -> {
+            if (syncing[0] || !lock.isSelected()) return;
+            syncing[0] = true;
+            h.getValueFactory().setValue((int) Math.max(1, Math.min(max, Math.round(v * (double) h0 / w0))));
+            syncing[0] = false;
+        });
+        h.valueProperty().addListener((o, a, v) -> {
+            if (syncing[0] || !lock.isSelected()) return;
+            syncing[0] = true;
+            w.getValueFactory().setValue((int) Math.max(1, Math.min(max, Math.round(v * (double) w0 / h0))));
+            syncing[0] = false;
+        });
+        ComboBox<Resampler.Method> method = new ComboBox<>();
+        method.getItems().addAll(Resampler.Method.values());
+        method.setValue(Resampler.Method.LANCZOS3);
+
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(6);
+        grid.addRow(0, new Label("Width"), w);
+        grid.addRow(1, new Label("Height"), h);
+        grid.addRow(2, new Label("Filter"), method);
+        grid.add(lock, 1, 3);
+        Dialog<SizeChoice> d = new Dialog<>();
+        d.setTitle(title);
+        d.initOwner(scene.getWindow());
+        d.getDialogPane().setContent(grid);
+        d.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+        d.setResultConverter(b -> b == ButtonType.OK ? new SizeChoice(w.getValue(), h.getValue(), method.getValue()) : null);
+        return d.showAndWait();
+    }
+
+    /** Effects on the active layer; each one is a single history step. */
+    private MenuButton buildEffectsMenu() {
+        MenuItem invert = new MenuItem("Invert");
+        invert.setOnAction(e -> EffectPreview.run(state, history, Effects.invert()));
+        MenuItem gray = new MenuItem("Grayscale");
+        gray.setOnAction(e -> EffectPreview.run(state, history, Effects.gray()));
+        MenuItem brightness = new MenuItem("Brightness…");
+        brightness.setOnAction(e -> tune("Brightness", v -> Effects.brightness(v[0] / 100),
+                new Knob("Brightness", -100, 100, 20)));
+        MenuItem autoLevels = new MenuItem("Auto Levels");
+        autoLevels.setOnAction(e -> EffectPreview.run(state, history, Effects.autoLevels(state)));
+        MenuItem autoContrast = new MenuItem("Auto Contrast");
+        autoContrast.setOnAction(e -> EffectPreview.run(state, history, Effects.autoContrast(state)));
+        MenuItem contrast = new MenuItem("Contrast…");
+        contrast.setOnAction(e -> tune("Contrast", v -> Effects.tone("Contrast", ToneLut.contrast(v[0] / 100)),
+                new Knob("Contrast (%)", -100, 100, 20)));
+        MenuItem gamma = new MenuItem("Gamma…");
+        gamma.setOnAction(e -> tune("Gamma", v -> Effects.tone("Gamma", ToneLut.gamma(v[0] / 100)),
+                new Knob("Gamma (%)", 10, 400, 100)));
+        MenuItem levels = new MenuItem("Levels…");
+        levels.setOnAction(e -> tune("Levels", v -> Effects.tone("Levels", ToneLut.levels(ToneLut.Channel.RGB,
+                        (int) v[0], (int) Math.max(v[0] + 1, v[2]), v[1] / 100, 0, 255)),
+                new Knob("Black point", 0, 254, 0), new Knob("Gamma (%)", 10, 400, 100),
+                new Knob("White point", 1, 255, 255)));
+        MenuItem curves = new MenuItem("Curves…");
+        curves.setOnAction(e -> tune("Curves", v -> Effects.tone("Curves", ToneLut.curve(ToneLut.Channel.RGB,
+                        new double[]{0, 64, 128, 192, 255}, new double[]{0, v[0], v[1], v[2], 255})),
+                new Knob("Shadows", 0, 255, 64), new Knob("Midtones", 0, 255, 128),
+                new Knob("Highlights", 0, 255, 192)));
+        MenuItem blur = new MenuItem("Gaussian Blur…");
+        blur.setOnAction(e -> tune("Gaussian Blur", v -> Effects.blur((int) Math.round(v[0])),
+                new Knob("Blur radius (px)", 1, Convolution.MAX_RADIUS, 8)));
+        MenuItem sharpen = new MenuItem("Unsharp Mask…");
+        sharpen.setOnAction(e -> tune("Unsharp Mask", v -> Effects.sharpen(3, v[0] / 100, 2),
+                new Knob("Sharpen amount (%)", 10, 300, 80)));
+        MenuItem edges = new MenuItem("Edge Detect");
+        edges.setOnAction(e -> EffectPreview.run(state, history, Effects.edges()));
+
+        MenuButton m = new MenuButton("Effects");
+        m.getItems().addAll(invert, gray, brightness, new SeparatorMenuItem(),
+                autoLevels, autoContrast, levels, curves, contrast, gamma, new SeparatorMenuItem(),
+                blur, sharpen, edges);
+        m.setFocusTraversable(false);
+        return m;
+    }
+
+    /** One slider of a tune() dialog. */
+    private record Knob(String label, double min, double max, double initial) { }
+
+    /** Modal slider prompt with a live preview of the effect; OK applies it, Cancel leaves the layer as it was. */
+    private void tune(String title, java.util.function.Function<double[], Effects.Filter> filter, Knob... knobs) {
+        double[] values = new double[knobs.length];
+        EffectPreview preview = new EffectPreview(state, history);
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(6);
+        for (int i = 0; i < knobs.length; i++) {
+            int k = i;
+            Slider slider = new Slider(knobs[i].min(), knobs[i].max(), knobs[i].initial());
+            slider.setPrefWidth(260);
+            Label value = new Label();
+            value.textProperty().bind(slider.valueProperty().asString("%.0f"));
+            values[i] = knobs[i].initial();
+            slider.valueProperty().addListener((o, a, v) -> {
+                values[k] = v.doubleValue();
+                preview.update(filter.apply(values));
+            });
+            grid.addRow(i, new Label(knobs[i].label()), slider, value);
+        }
+        preview.update(filter.apply(values));
+        Dialog<ButtonType> d = new Dialog<>();
+        d.setTitle(title);
+        d.initOwner(scene.getWindow());
+        d.getDialogPane().setContent(grid);
+        d.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+        if (d.showAndWait().orElse(ButtonType.CANCEL) == ButtonType.OK) preview.commit();
+        else preview.cancel();
+    }
+
     private Button topButton(javafx.scene.Node icon, String tip) {
         Button b = new Button();
         b.getStyleClass().add("top-icon-button");
@@ -371,6 +753,11 @@ public class PaintApp extends Application {
         state.setStatus("Tool: " + currentTool.getName());
     }
 
+    /** Clipboard shortcuts apply while a selection tool is active. */
+    private boolean selecting() {
+        return currentTool instanceof SelectTool || currentTool instanceof MagicWandTool;
+    }
+
     // Programmatically select a tool (digits); initializes even if already selected
     private void selectToggleForTool(Tool tool) {
         for (var t : toolGroup.getToggles()) {
@@ -14,6 +14,8 @@ public class PencilTool implements Tool {
     private ChangeListener<Number> brushListener;
     private ChangeListener<Color> colorListener;
     private boolean drew = false; // track if anything was actually drawn
+    private Color color;          // captured at press so replay matches exactly
+    private double width;
 
     @Override public String getName(){ return "Pencil"; }
 
@@ -46,51 +48,99 @@ public class PencilTool implements Tool {
     public void onPress(CanvasState s, HistoryManager h, MouseEvent e) {
         points.clear();
         drew = false;
+        color = s.getStroke();
+        width = s.getBrush();
 
+        // stroke is previewed on the overlay and rendered into the document on release
+        s.clearOverlay();
         points.add(new double[]{e.getX(), e.getY()});
-        GraphicsContext g = s.getBase().getGraphicsContext2D();
-        g.setStroke(s.getStroke());
-        g.setLineWidth(s.getBrush());
-        g.setLineCap(javafx.scene.shape.StrokeLineCap.ROUND);
-        g.beginPath();
-        g.moveTo(e.getX(), e.getY());
+        begin(s.getOverlay().getGraphicsContext2D(), color, width, e.getX(), e.getY());
     }
 
     @Override
     public void onDrag(CanvasState s, HistoryManager h, MouseEvent e) {
         points.add(new double[]{e.getX(), e.getY()});
-        GraphicsContext g = s.getBase().getGraphicsContext2D();
-        g.setStroke(s.getStroke());
-        g.setLineWidth(s.getBrush());
+        int last = points.size() - 1;
+        double[] p0 = points.get(Math.max(0, last - 2));
+        double[] p1 = points.get(last - 1);
+        double[] p2 = points.get(last);
+        piece(s.getOverlay().getGraphicsContext2D(), color, width, points.size(),
+                p0[0], p0[1], p1[0], p1[1], p2[0], p2[1]);
+        drew = true;
+    }
+
+    @Override
+    public void onRelease(CanvasState s, HistoryManager h, MouseEvent e) {
+        if (drew) {
+            double[] xy = new double[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                xy[2 * i] = points.get(i)[0];
+                xy[2 * i + 1] = points.get(i)[1];
+            }
+            Stroke stroke = new Stroke(xy, color, width);
+            s.clearOverlay(); // the preview gives way to the stroke rendered into the document
+            stroke.apply(s);
+            h.push(stroke);   // save exactly once per stroke, after finishing
+        }
+        points.clear();
+        drew = false;
+    }
+
+    // ---- rendering (shared by live drawing and history replay) ----
+    private static void begin(GraphicsContext g, Color color, double width, double x, double y) {
+        g.setStroke(color);
+        g.setLineWidth(width);
+        g.setLineCap(javafx.scene.shape.StrokeLineCap.ROUND);
+        g.setLineDashes(0);
+        g.beginPath();
+        g.moveTo(x, y);
+    }
+
+    /** Draw the piece added by the n-th point (n >= 2); p0..p2 are the last three points. */
+    private static void piece(GraphicsContext g, Color color, double width, int n,
+                              double x0, double y0, double x1, double y1, double x2, double y2) {
+        g.setStroke(color);
+        g.setLineWidth(width);
         g.setLineCap(javafx.scene.shape.StrokeLineCap.ROUND);
 
-        if (points.size() < 3) {
-            g.lineTo(e.getX(), e.getY());
+        if (n < 3) {
+            g.lineTo(x2, y2);
             g.stroke();
-            drew = true;
             return;
         }
-        int last = points.size() - 1;
-        double[] p0 = points.get(last - 2);
-        double[] p1 = points.get(last - 1);
-        double[] p2 = points.get(last);
-
-        double midX1 = (p0[0] + p1[0]) / 2.0;
-        double midY1 = (p0[1] + p1[1]) / 2.0;
-        double midX2 = (p1[0] + p2[0]) / 2.0;
-        double midY2 = (p1[1] + p2[1]) / 2.0;
+        double midX1 = (x0 + x1) / 2.0;
+        double midY1 = (y0 + y1) / 2.0;
+        double midX2 = (x1 + x2) / 2.0;
+        double midY2 = (y1 + y2) / 2.0;
 
         g.beginPath();
         g.moveTo(midX1, midY1);
-        g.quadraticCurveTo(p1[0], p1[1], midX2, midY2);
+        g.quadraticCurveTo(x1, y1, midX2, midY2);
         g.stroke();
-        drew = true;
     }
 
-    @Override
-    public void onRelease(CanvasState s, HistoryManager h, MouseEvent e) {
-        if (drew) h.push();   // save exactly once per stroke, after finishing
-        points.clear();
-        drew = false;
+    /** One finished stroke: flat x,y pairs plus the color and width it was drawn with. */
+    public record Stroke(double[] xy, Color color, double width) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            double minX = xy[0], maxX = xy[0], minY = xy[1], maxY = xy[1];
+            for (int i = 2; i < xy.length; i += 2) {
+                minX = Math.min(minX, xy[i]);     maxX = Math.max(maxX, xy[i]);
+                minY = Math.min(minY, xy[i + 1]); maxY = Math.max(maxY, xy[i + 1]);
+            }
+            double pad = width / 2 + 1;
+            s.drawToDocument(minX - pad, minY - pad, maxX - minX + 2 * pad, maxY - minY + 2 * pad, this::draw);
+        }
+
+        private void draw(GraphicsContext g) {
+            begin(g, color, width, xy[0], xy[1]);
+            int n = xy.length / 2;
+            for (int k = 2; k <= n; k++) {
+                int i0 = 2 * Math.max(0, k - 3), i1 = 2 * (k - 2), i2 = 2 * (k - 1);
+                piece(g, color, width, k, xy[i0], xy[i0 + 1], xy[i1], xy[i1 + 1], xy[i2], xy[i2 + 1]);
+            }
+        }
+
+        @Override public long estimatedBytes() { return 64 + 8L * xy.length; }
     }
 }
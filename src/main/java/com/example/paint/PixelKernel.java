@@ -0,0 +1,32 @@
+package com.example.paint;
+
+/**
+ * A point operation on packed ARGB pixels, applied a row segment at a time.
+ * - Works in place on the tile arrays: no per-pixel calls through an interface, no allocation
+ * - Must not look at neighbours and must keep fully transparent pixels transparent, since
+ *   unallocated (transparent) tiles are never visited
+ * - Run with {@link RasterDocument#apply}, which splits big documents by tile over the
+ *   ForkJoin common pool and stays on the calling thread for small ones
+ */
+@FunctionalInterface
+public interface PixelKernel {
+    /** Below this many painted pixels a kernel runs single-threaded (forking costs more). */
+    int PARALLEL_THRESHOLD = 1 << 18;
+
+    /** Transform px[off .. off+len) in place. Called concurrently for different rows. */
+    void apply(int[] px, int off, int len);
+
+    /** Pixels per step of a fused chain: small enough to stay in L1 between kernels. */
+    int FUSE_CHUNK = 1024;
+
+    /** Run ks one after another as a single kernel, chunk by chunk, so pixels are loaded once. */
+    static PixelKernel fuse(PixelKernel... ks) {
+        if (ks.length == 1) return ks[0];
+        return (px, off, len) -> {
+            for (int c = off, end = off + len; c < end; c += FUSE_CHUNK) {
+                int n = Math.min(FUSE_CHUNK, end - c);
+                for (PixelKernel k : ks) k.apply(px, c, n);
+            }
+        };
+    }
+}
@@ -1,7 +1,6 @@
 package com.example.paint;
 
 import javafx.geometry.Point2D;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
 
@@ -112,14 +111,13 @@ public class PolygonTool implements Tool {
     // --- helpers ---
 
     private void commitSegment(CanvasState s, HistoryManager h, double x1, double y1, double x2, double y2) {
-        GraphicsContext gb = s.getBase().getGraphicsContext2D();
-        gb.setLineWidth(Math.max(1, s.getBrush()));
-        gb.setStroke(s.getStroke());
-        gb.setLineCap(javafx.scene.shape.StrokeLineCap.ROUND);
-        gb.strokeLine(x1, y1, x2, y2);
+        // drop the preview, then render the segment into the document
+        LineTool.Segment seg = new LineTool.Segment(x1, y1, x2, y2, s.getStroke(), Math.max(1, s.getBrush()));
+        s.clearOverlay();
+        seg.apply(s);
 
         // One history entry per segment
-        h.push();
+        h.push(seg);
     }
 
     private void drawFirstVertexMarker(CanvasState s) {
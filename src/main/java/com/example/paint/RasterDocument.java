@@ -0,0 +1,350 @@
+package com.example.paint;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Pixel store for the document: a sparse grid of fixed-size tiles of non-premultiplied
+ * int ARGB (same layout as {@link PixelFormat#getIntArgbInstance()}).
+ * A null tile is fully transparent and costs nothing, so memory follows the painted
+ * area rather than the document size; tiles are allocated on the first visible write.
+ *
+ * The JavaFX canvas only displays this raster; tools read and write pixels here
+ * directly, so no GPU readback is needed to sample the image.
+ * Rectangles passed to the bulk methods are clipped to the document bounds.
+ *
+ * Tiles are copy-on-write: {@link #snapshot()} shares the current tile arrays with
+ * an immutable {@link Snapshot}, and the first later write to a shared tile clones it.
+ * History therefore only ever holds one copy of each distinct tile.
+ */
+public class RasterDocument {
+
+    public static final int TILE_SIZE = 256;
+
+    private int width, height;
+    private int cols, rows;
+    private int[][] tiles;    // null = transparent, not allocated
+    private boolean[] shared; // tile is referenced by a Snapshot → clone before writing
+
+    /** Immutable view of the document at one point in time; tiles are shared, never written. */
+    public static final class Snapshot {
+        final int width, height, cols;
+        final int[][] tiles;
+
+        Snapshot(int width, int height, int cols, int[][] tiles) {
+            this.width = width; this.height = height; this.cols = cols; this.tiles = tiles;
+        }
+
+        public int getWidth()  { return width; }
+        public int getHeight() { return height; }
+        public int getTileCount() { return tiles.length; }
+    }
+
+    public RasterDocument(int width, int height) {
+        allocate(Math.max(1, width), Math.max(1, height));
+    }
+
+    /** A read-only document over a snapshot's tiles (e.g. for work off the FX thread). */
+    RasterDocument(Snapshot snap) {
+        allocateShared(snap);
+    }
+
+    private void allocate(int w, int h) {
+        width = w;
+        height = h;
+        cols = (w + TILE_SIZE - 1) / TILE_SIZE;
+        rows = (h + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new int[cols * rows][];
+        shared = new boolean[tiles.length];
+    }
+
+    /** Tile i, allocated if empty and cloned first if a snapshot still references it. */
+    private int[] writable(int i) {
+        if (tiles[i] == null) {
+            tiles[i] = new int[TILE_SIZE * TILE_SIZE];
+            shared[i] = false;
+        } else if (shared[i]) {
+            tiles[i] = tiles[i].clone();
+            shared[i] = false;
+        }
+        return tiles[i];
+    }
+
+    public int getWidth()  { return width; }
+    public int getHeight() { return height; }
+    public int getTileCols() { return cols; }
+    public int getTileRows() { return rows; }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    /** False for tiles that were never painted (or were cleared back to transparent). */
+    public boolean isTileAllocated(int i) { return tiles[i] != null; }
+
+    /** Tile i's pixels for fast read-only scans (row stride TILE_SIZE); null = transparent. Never write to it. */
+    int[] peekTile(int i) { return tiles[i]; }
+
+    public int getAllocatedTileCount() {
+        int n = 0;
+        for (int[] t : tiles) if (t != null) n++;
+        return n;
+    }
+
+    // ---------- Single pixels ----------
+    /** ARGB at (x,y); fully transparent outside the document. */
+    public int getArgb(int x, int y) {
+        if (!contains(x, y)) return 0;
+        int[] t = tiles[(y / TILE_SIZE) * cols + (x / TILE_SIZE)];
+        return t == null ? 0 : t[(y % TILE_SIZE) * TILE_SIZE + (x % TILE_SIZE)];
+    }
+
+    public void setArgb(int x, int y, int argb) {
+        if (!contains(x, y)) return;
+        if (argb == 0 && tiles[(y / TILE_SIZE) * cols + (x / TILE_SIZE)] == null) return;
+        int[] t = writable((y / TILE_SIZE) * cols + (x / TILE_SIZE));
+        t[(y % TILE_SIZE) * TILE_SIZE + (x % TILE_SIZE)] = argb;
+    }
+
+    // ---------- Bulk access ----------
+    /** Copy a rectangle into dst (row stride = scan). Clipped parts of dst are left untouched. */
+    public void readPixels(int x, int y, int w, int h, int[] dst, int off, int scan) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        for (int yy = y0; yy < y1; yy++) {
+            int rowBase = off + (yy - y) * scan - x;
+            int ty = yy / TILE_SIZE, inRow = (yy % TILE_SIZE) * TILE_SIZE;
+            for (int xx = x0; xx < x1; ) {
+                int tx = xx / TILE_SIZE;
+                int run = Math.min(x1, (tx + 1) * TILE_SIZE) - xx;
+                int[] t = tiles[ty * cols + tx];
+                if (t == null) java.util.Arrays.fill(dst, rowBase + xx, rowBase + xx + run, 0);
+                else System.arraycopy(t, inRow + (xx % TILE_SIZE), dst, rowBase + xx, run);
+                xx += run;
+            }
+        }
+    }
+
+    /** Replace a rectangle with src (row stride = scan). */
+    public void writePixels(int x, int y, int w, int h, int[] src, int off, int scan) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        for (int yy = y0; yy < y1; yy++) {
+            int rowBase = off + (yy - y) * scan - x;
+            int ty = yy / TILE_SIZE, inRow = (yy % TILE_SIZE) * TILE_SIZE;
+            for (int xx = x0; xx < x1; ) {
+                int tx = xx / TILE_SIZE;
+                int run = Math.min(x1, (tx + 1) * TILE_SIZE) - xx;
+                int i = ty * cols + tx;
+                if (tiles[i] != null || !isZero(src, rowBase + xx, run)) {
+                    System.arraycopy(src, rowBase + xx, writable(i), inRow + (xx % TILE_SIZE), run);
+                }
+                xx += run;
+            }
+        }
+    }
+
+    /** Source-over composite src onto the document (both non-premultiplied ARGB). */
+    public void blendPixels(int x, int y, int w, int h, int[] src, int off, int scan) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        for (int yy = y0; yy < y1; yy++) {
+            int rowBase = off + (yy - y) * scan - x;
+            int ty = yy / TILE_SIZE, inRow = (yy % TILE_SIZE) * TILE_SIZE;
+            for (int xx = x0; xx < x1; ) {
+                int tx = xx / TILE_SIZE;
+                int run = Math.min(x1, (tx + 1) * TILE_SIZE) - xx;
+                int[] t = null; // allocated on the first visible source pixel
+                int ti = inRow + (xx % TILE_SIZE), si = rowBase + xx;
+                for (int k = 0; k < run; k++) {
+                    int s = src[si + k];
+                    if ((s >>> 24) == 0) continue;
+                    if (t == null) t = writable(ty * cols + tx);
+                    t[ti + k] = ColorUtils.blendOver(t[ti + k], s);
+                }
+                xx += run;
+            }
+        }
+    }
+
+    /** Fill a rectangle; clearing a whole tile to transparent releases it. */
+    public void fillRect(int x, int y, int w, int h, int argb) {
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(width, x + w), y1 = Math.min(height, y + h);
+        if (x1 <= x0 || y1 <= y0) return;
+        for (int ty = y0 / TILE_SIZE; ty <= (y1 - 1) / TILE_SIZE; ty++) {
+            int ty0 = ty * TILE_SIZE, cy0 = Math.max(y0, ty0), cy1 = Math.min(y1, ty0 + TILE_SIZE);
+            for (int tx = x0 / TILE_SIZE; tx <= (x1 - 1) / TILE_SIZE; tx++) {
+                int tx0 = tx * TILE_SIZE, cx0 = Math.max(x0, tx0), cx1 = Math.min(x1, tx0 + TILE_SIZE);
+                int i = ty * cols + tx;
+                if (argb == 0) {
+                    if (tiles[i] == null) continue;
+                    boolean whole = cx0 == tx0 && cy0 == ty0
+                            && cx1 == Math.min(width, tx0 + TILE_SIZE) && cy1 == Math.min(height, ty0 + TILE_SIZE);
+                    if (whole) { tiles[i] = null; shared[i] = false; continue; }
+                }
+                int[] t = writable(i);
+                for (int yy = cy0; yy < cy1; yy++) {
+                    int from = (yy - ty0) * TILE_SIZE + (cx0 - tx0);
+                    java.util.Arrays.fill(t, from, from + (cx1 - cx0), argb);
+                }
+            }
+        }
+    }
+
+    /** Fully transparent clear; releases every tile. */
+    public void clear() {
+        java.util.Arrays.fill(tiles, null);
+        java.util.Arrays.fill(shared, false);
+    }
+
+    /**
+     * Run a point kernel over every row of the allocated tiles, in place. Unallocated tiles are
+     * transparent and are skipped. Tiles are independent, so big documents are done in parallel
+     * (copy-on-write clones included); small ones stay on this thread.
+     */
+    public void apply(PixelKernel k) {
+        int[] todo = new int[tiles.length];
+        int n = 0;
+        for (int i = 0; i < tiles.length; i++) if (tiles[i] != null) todo[n++] = i;
+        java.util.stream.IntStream range = java.util.stream.IntStream.range(0, n);
+        if ((long) n * TILE_SIZE * TILE_SIZE >= PixelKernel.PARALLEL_THRESHOLD) range = range.parallel();
+        range.forEach(j -> applyTile(todo[j], k));  // each task touches only its own tile slot
+    }
+
+    private void applyTile(int i, PixelKernel k) {
+        int tx0 = (i % cols) * TILE_SIZE, ty0 = (i / cols) * TILE_SIZE;
+        int vw = Math.min(TILE_SIZE, width - tx0), vh = Math.min(TILE_SIZE, height - ty0);
+        int[] t = writable(i);
+        if (vw == TILE_SIZE) k.apply(t, 0, vw * vh);   // full-width tile rows are contiguous
+        else for (int r = 0; r < vh; r++) k.apply(t, r * TILE_SIZE, vw);
+    }
+
+    private static boolean isZero(int[] a, int from, int len) {
+        for (int k = from, end = from + len; k < end; k++) if (a[k] != 0) return false;
+        return true;
+    }
+
+    // ---------- Size ----------
+    /** Change the document size, keeping the pixels that still fit (anchored top-left). */
+    public void resize(int newW, int newH) {
+        newW = Math.max(1, newW);
+        newH = Math.max(1, newH);
+        if (newW == width && newH == height) return;
+        int[][] oldTiles = tiles;
+        boolean[] oldShared = shared;
+        int oldCols = cols, oldW = width, oldH = height;
+
+        allocate(newW, newH);
+        int keepW = Math.min(oldW, newW), keepH = Math.min(oldH, newH);
+        int keepCols = (keepW + TILE_SIZE - 1) / TILE_SIZE;
+        int keepRows = (keepH + TILE_SIZE - 1) / TILE_SIZE;
+        for (int ty = 0; ty < keepRows; ty++) {
+            for (int tx = 0; tx < keepCols; tx++) {
+                int i = ty * cols + tx;
+                tiles[i] = oldTiles[ty * oldCols + tx];
+                shared[i] = oldShared[ty * oldCols + tx];
+                clipTile(i, tx, ty, keepW, keepH);
+            }
+        }
+    }
+
+    /** Zero the part of tile i = (tx,ty) lying outside a w×h document. */
+    private void clipTile(int i, int tx, int ty, int w, int h) {
+        int validW = Math.min(TILE_SIZE, w - tx * TILE_SIZE);
+        int validH = Math.min(TILE_SIZE, h - ty * TILE_SIZE);
+        if (validW == TILE_SIZE && validH == TILE_SIZE) return;
+        if (tiles[i] == null) return;
+        int[] t = writable(i);
+        if (validW < TILE_SIZE) {
+            for (int r = 0; r < validH; r++) {
+                java.util.Arrays.fill(t, r * TILE_SIZE + validW, (r + 1) * TILE_SIZE, 0);
+            }
+        }
+        if (validH < TILE_SIZE) java.util.Arrays.fill(t, validH * TILE_SIZE, t.length, 0);
+    }
+
+    // ---------- Snapshots (copy-on-write) ----------
+    /** Freeze the current tiles into a snapshot. O(tile count), no pixels are copied. */
+    public Snapshot snapshot() {
+        java.util.Arrays.fill(shared, true);
+        return new Snapshot(width, height, cols, tiles.clone());
+    }
+
+    /**
+     * Make the document equal to a snapshot again, sharing its tiles.
+     * Returns the indices of tiles whose contents may have changed (same size only),
+     * or null when the size changed and everything must be treated as dirty.
+     */
+    public int[] restore(Snapshot snap) {
+        if (snap.width != width || snap.height != height) {
+            allocateShared(snap);
+            return null;
+        }
+        int[] changed = new int[tiles.length];
+        int n = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != snap.tiles[i]) {
+                tiles[i] = snap.tiles[i];
+                changed[n++] = i;
+            }
+            shared[i] = true;
+        }
+        return java.util.Arrays.copyOf(changed, n);
+    }
+
+    private void allocateShared(Snapshot snap) {
+        width = snap.width;
+        height = snap.height;
+        cols = snap.cols;
+        rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = snap.tiles.clone();
+        shared = new boolean[tiles.length];
+        java.util.Arrays.fill(shared, true);
+    }
+
+    // ---------- JavaFX image interop ----------
+    /** Copy a rectangle out as a new image (for clipboard, ghosts, saving). */
+    public WritableImage toImage(int x, int y, int w, int h) {
+        w = Math.max(1, w);
+        h = Math.max(1, h);
+        int[] buf = new int[w * h];
+        readPixels(x, y, w, h, buf, 0, w);
+        WritableImage img = new WritableImage(w, h);
+        img.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), buf, 0, w);
+        return img;
+    }
+
+    public WritableImage toImage() { return toImage(0, 0, width, height); }
+
+    /** Source-over an image onto the document with its top-left at (x,y). */
+    public void drawImage(Image img, int x, int y) {
+        copyImage(img, x, y, true);
+    }
+
+    /** Replace a rectangle with an image's pixels (alpha copied, not blended). */
+    public void writeImage(Image img, int x, int y) {
+        copyImage(img, x, y, false);
+    }
+
+    /** Copy in bands of one tile row so large images never need a full-size int[]. */
+    private void copyImage(Image img, int x, int y, boolean blend) {
+        PixelReader pr = img.getPixelReader();
+        int w = (int) img.getWidth(), h = (int) img.getHeight();
+        if (pr == null || w <= 0 || h <= 0) return;
+        // only the part that lands inside the document
+        int sx0 = Math.max(0, -x), sy0 = Math.max(0, -y);
+        int sx1 = Math.min(w, width - x), sy1 = Math.min(h, height - y);
+        if (sx1 <= sx0 || sy1 <= sy0) return;
+        int bw = sx1 - sx0;
+        int[] band = new int[bw * Math.min(TILE_SIZE, sy1 - sy0)];
+        for (int sy = sy0; sy < sy1; sy += TILE_SIZE) {
+            int bh = Math.min(TILE_SIZE, sy1 - sy);
+            pr.getPixels(sx0, sy, bw, bh, PixelFormat.getIntArgbInstance(), band, 0, bw);
+            if (blend) blendPixels(x + sx0, y + sy, bw, bh, band, 0, bw);
+            else writePixels(x + sx0, y + sy, bw, bh, band, 0, bw);
+        }
+    }
+}
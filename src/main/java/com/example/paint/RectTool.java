@@ -1,6 +1,8 @@
 package com.example.paint;
 
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.paint.Color;
 
 public class RectTool implements Tool {
     private double sx, sy, ex, ey;
@@ -20,24 +22,42 @@ public class RectTool implements Tool {
     public void onDrag(CanvasState s, HistoryManager h, MouseEvent e) {
         if (!dragging) return;
         ex = e.getX(); ey = e.getY();
-        double x = Math.min(sx, ex), y = Math.min(sy, ey);
-        double w = Math.abs(ex - sx), hgt = Math.abs(ey - sy);
-
-        var g = s.getOverlay().getGraphicsContext2D();
         s.clearOverlay();
-        g.setLineWidth(s.getBrush());
-        g.setStroke(s.getStroke());
-        g.setFill(s.getFill());
-        if (s.getFill().getOpacity() > 0) g.fillRect(x, y, w, hgt);
-        g.strokeRect(x, y, w, hgt);
+        current(s).draw(s.getOverlay().getGraphicsContext2D());
     }
 
     @Override
     public void onRelease(CanvasState s, HistoryManager h, MouseEvent e) {
         if (!dragging) return;
         dragging = false;
-        s.commitOverlay();
-        h.push();
+        Box shape = current(s);
+        s.clearOverlay();
+        shape.apply(s);
+        h.push(shape);
+    }
+
+    private Box current(CanvasState s) {
+        return new Box(Math.min(sx, ex), Math.min(sy, ey), Math.abs(ex - sx), Math.abs(ey - sy),
+                s.getStroke(), s.getFill(), s.getBrush());
+    }
+
+    /** An outlined (optionally filled) rectangle. */
+    public record Box(double x, double y, double w, double h, Color stroke, Color fill, double width)
+            implements HistoryCommand {
+        void draw(GraphicsContext g) {
+            g.setLineWidth(width);
+            g.setStroke(stroke);
+            g.setFill(fill);
+            g.setLineDashes(0);
+            if (fill.getOpacity() > 0) g.fillRect(x, y, w, h);
+            g.strokeRect(x, y, w, h);
+        }
+
+        @Override
+        public void apply(CanvasState s) {
+            double pad = width / 2 + 1; // stroke straddles the outline
+            s.drawToDocument(x - pad, y - pad, w + 2 * pad, h + 2 * pad, this::draw);
+        }
     }
 
     @Override
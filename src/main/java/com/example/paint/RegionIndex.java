@@ -0,0 +1,96 @@
+package com.example.paint;
+
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Recently found fill regions, so hovering and clicking with the bucket need no new flood fill.
+ * - A region is keyed by source document, seed colour and fill settings. Every pixel of that
+ *   colour inside it has the same region, so a lookup is a key compare plus one mask bit
+ * - Misses are computed on a background thread straight from the layer's tiles, with no
+ *   snapshot: sharing the tiles would make the next stroke copy every tile it touches. Every
+ *   edit is reported (invalidate) in the same FX event that made it, so a result is only kept
+ *   if no edit came in while it ran; one that read pixels mid-edit is dropped
+ * - Queued requests are replaced by newer ones, and only the newest is handed back (on the FX
+ *   thread). Older ones that still finish are cached if no edit came in between
+ * - Edits drop only the regions they can change: contiguous regions whose box (grown by one
+ *   pixel) touches the edit, and every non-contiguous one
+ */
+final class RegionIndex {
+    private static final int MAX_ENTRIES = 6;      // a doc-sized mask is 1 bit per pixel each
+
+    private record Key(RasterDocument src, int argb, double tolerance, boolean diagonal, boolean contiguous) { }
+    private record Entry(Key key, RegionMask mask) { }
+
+    private final ArrayList<Entry> entries = new ArrayList<>();  // most recently used last
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "region-index");
+        t.setDaemon(true);
+        return t;
+    });
+    private Future<?> pending;
+    private int edits, requests;
+
+    /** The cached region the bucket would fill from (x,y), or null. FX thread only. */
+    RegionMask lookup(RasterDocument src, int x, int y, double tolerance, boolean diagonal, boolean contiguous) {
+        if (!src.contains(x, y)) return null;
+        Key key = new Key(src, src.getArgb(x, y), tolerance, diagonal, contiguous);
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry e = entries.get(i);
+            RegionMask m = e.mask;
+            if (!e.key.equals(key) || m.getWidth() != src.getWidth() || m.getHeight() != src.getHeight()) continue;
+            if (!m.contains(x, y)) continue;
+            if (i != entries.size() - 1) entries.add(entries.remove(i));
+            return m;
+        }
+        return null;
+    }
+
+    /**
+     * Find the region from (x,y) in the background and pass it to done on the FX thread.
+     * Only the newest request is passed on; an edit before it finishes drops the result.
+     */
+    void request(RasterDocument src, int x, int y, double tolerance, boolean diagonal, boolean contiguous,
+                 Consumer<RegionMask> done) {
+        if (!src.contains(x, y)) return;
+        if (pending != null) pending.cancel(false);
+        Key key = new Key(src, src.getArgb(x, y), tolerance, diagonal, contiguous);
+        int ticket = ++requests, editsAtStart = edits;
+        pending = worker.submit(() -> {
+            FloodFill f;
+            try {
+                f = contiguous
+                        ? FloodFill.region(src, x, y, tolerance, diagonal)
+                        : FloodFill.similar(src, x, y, tolerance);
+                f.mask.isEmpty();                  // settle the bounds off the FX thread
+            } catch (RuntimeException ex) {
+                return;                            // layer resized under the fill; its edit drops this anyway
+            }
+            Platform.runLater(() -> {
+                if (edits != editsAtStart) return; // pixels changed meanwhile
+                if (lookup(src, x, y, tolerance, diagonal, contiguous) == null) {
+                    entries.add(new Entry(key, f.mask));
+                    if (entries.size() > MAX_ENTRIES) entries.remove(0);
+                }
+                if (ticket == requests) done.accept(f.mask);
+            });
+        });
+    }
+
+    /** Pixels changed inside this document rectangle. */
+    void invalidate(int x, int y, int w, int h) {
+        edits++;
+        if (pending != null) pending.cancel(false); // not started yet: it would only be dropped
+        entries.removeIf(e -> {
+            if (!e.key.contiguous) return true;
+            RegionMask m = e.mask;
+            return m.isEmpty() || (x <= m.getMaxX() + 1 && m.getMinX() - 1 < x + w
+                    && y <= m.getMaxY() + 1 && m.getMinY() - 1 < y + h);
+        });
+    }
+}
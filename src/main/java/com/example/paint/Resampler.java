@@ -0,0 +1,199 @@
+package com.example.paint;
+
+import java.util.stream.IntStream;
+
+/**
+ * Image resampling (scale to a new size) with nearest, bilinear, bicubic and Lanczos-3 filters.
+ * - Separable: a horizontal pass into an intermediate image (new width, old height), then a
+ *   vertical pass into the result
+ * - For each axis the source taps and weights of every output column/row are computed once
+ *   into a table (14-bit fixed point, summing to exactly 1), so the inner loops are integer
+ *   multiply-adds
+ * - When shrinking, the filter is widened by the scale factor so every source pixel counts
+ *   (no aliasing); taps past the edge are dropped and the rest renormalised
+ * - Colours are filtered premultiplied by alpha, so transparent pixels do not bleed in
+ * - Both passes work in bands of rows on the ForkJoin common pool; the first skips bands with
+ *   no painted tile, the second writes whole tile rows so bands never share a tile
+ */
+public final class Resampler {
+    public enum Method {
+        NEAREST("Nearest neighbour", 0), BILINEAR("Bilinear", 1), BICUBIC("Bicubic", 2), LANCZOS3("Lanczos-3", 3);
+
+        private final String label;
+        final int radius;                          // filter reach in source pixels at scale 1
+        Method(String label, int radius) { this.label = label; this.radius = radius; }
+
+        double weight(double x) {
+            x = Math.abs(x);
+            return switch (this) {
+                case NEAREST -> 1;
+                case BILINEAR -> x < 1 ? 1 - x : 0;
+                case BICUBIC -> x < 1 ? (1.5 * x - 2.5) * x * x + 1             // Keys, a = -0.5
+                              : x < 2 ? ((-0.5 * x + 2.5) * x - 4) * x + 2 : 0;
+                case LANCZOS3 -> x == 0 ? 1 : x < 3
+                        ? 3 * Math.sin(Math.PI * x) * Math.sin(Math.PI * x / 3) / (Math.PI * Math.PI * x * x) : 0;
+            };
+        }
+
+        @Override public String toString() { return label; }
+    }
+
+    private static final int BITS = 14, ONE = 1 << BITS, HALF = ONE >> 1;
+    private static final int T = RasterDocument.TILE_SIZE, BAND = 64, CHUNK = 512;
+
+    private Resampler() { }
+
+    // ---------- Weight tables ----------
+    /** Output pixel i reads count[i] source pixels from start[i], weighted by weights[i * taps ..]. */
+    private record Taps(int[] start, int[] count, int taps, int[] weights) {
+
+        static Taps of(Method m, int in, int out) {
+            double scale = (double) out / in;
+            int[] start = new int[out], count = new int[out];
+            if (m == Method.NEAREST) {
+                int[] w = new int[out];
+                for (int i = 0; i < out; i++) {
+                    start[i] = Math.min(in - 1, (int) ((i + 0.5) / scale));
+                    count[i] = 1;
+                    w[i] = ONE;
+                }
+                return new Taps(start, count, 1, w);
+            }
+            double fs = Math.max(1, 1 / scale), support = m.radius * fs;
+            int taps = 2 * (int) Math.ceil(support) + 2;
+            int[] weights = new int[out * taps];
+            double[] w = new double[taps];
+            for (int i = 0; i < out; i++) {
+                double c = (i + 0.5) / scale;
+                int lo = Math.max(0, (int) Math.floor(c - support)), hi = Math.min(in, (int) Math.ceil(c + support));
+                int n = Math.min(taps, hi - lo);
+                double sum = 0;
+                for (int k = 0; k < n; k++) sum += w[k] = m.weight((lo + k + 0.5 - c) / fs);
+                if (sum == 0) sum = 1;
+                int total = 0, big = 0;
+                for (int k = 0; k < n; k++) {
+                    int q = (int) Math.round(w[k] / sum * ONE);
+                    weights[i * taps + k] = q;
+                    total += q;
+                    if (Math.abs(q) > Math.abs(weights[i * taps + big])) big = k;
+                }
+                weights[i * taps + big] += ONE - total;  // rounding lands on the biggest tap
+                start[i] = lo;
+                count[i] = n;
+            }
+            return new Taps(start, count, taps, weights);
+        }
+    }
+
+    // ---------- Entry points ----------
+    /** A new document holding src scaled to w×h. */
+    static RasterDocument resample(RasterDocument src, int w, int h, Method m) {
+        int sw = src.getWidth(), sh = src.getHeight();
+        RasterDocument out = new RasterDocument(w, h);
+        Taps tx = Taps.of(m, sw, w), ty = Taps.of(m, sh, h);
+        if (m == Method.NEAREST) return nearest(src, out, tx, ty);
+
+        // horizontal: source rows -> mid (w × sh, premultiplied)
+        int[] mid = new int[w * sh];
+        IntStream.range(0, (sh + BAND - 1) / BAND).parallel().forEach(b -> {
+            int y0 = b * BAND, bh = Math.min(BAND, sh - y0);
+            if (!anyPainted(src, y0, bh)) return;
+            int[] buf = new int[sw * bh];
+            src.readPixels(0, y0, sw, bh, buf, 0, sw);
+            buf = Convolution.premultiply(buf);
+            for (int r = 0; r < bh; r++) filterRow(buf, r * sw, mid, (y0 + r) * w, w, tx);
+        });
+
+        // vertical: mid columns -> result, one tile row per band
+        IntStream.range(0, (h + T - 1) / T).parallel().forEach(b -> {
+            int y0 = b * T, bh = Math.min(T, h - y0);
+            int[] band = new int[w * bh], acc = new int[4 * CHUNK];
+            for (int y = 0; y < bh; y++) filterColumns(mid, w, y0 + y, ty, acc, band, y * w);
+            out.writePixels(0, y0, w, bh, band, 0, w);
+        });
+        return out;
+    }
+
+    /** px (sw×sh, straight ARGB) scaled to w×h. */
+    static int[] resample(int[] px, int sw, int sh, int w, int h, Method m) {
+        RasterDocument src = new RasterDocument(sw, sh);
+        src.writePixels(0, 0, sw, sh, px, 0, sw);
+        int[] out = new int[w * h];
+        resample(src, w, h, m).readPixels(0, 0, w, h, out, 0, w);
+        return out;
+    }
+
+    // ---------- Passes ----------
+    /** Nearest neighbour: every output pixel is a source pixel as is (no premultiplied round trip). */
+    private static RasterDocument nearest(RasterDocument src, RasterDocument out, Taps tx, Taps ty) {
+        int sw = src.getWidth(), w = out.getWidth(), h = out.getHeight();
+        IntStream.range(0, (h + T - 1) / T).parallel().forEach(b -> {
+            int y0 = b * T, bh = Math.min(T, h - y0);
+            int[] band = new int[w * bh], row = new int[sw];
+            for (int y = 0, last = -1; y < bh; y++) {
+                int sy = ty.start[y0 + y];
+                if (sy != last) src.readPixels(0, sy, sw, 1, row, 0, sw);
+                last = sy;
+                for (int x = 0; x < w; x++) band[y * w + x] = row[tx.start[x]];
+            }
+            out.writePixels(0, y0, w, bh, band, 0, w);
+        });
+        return out;
+    }
+
+    private static void filterRow(int[] src, int off, int[] dst, int doff, int n, Taps t) {
+        int[] start = t.start, count = t.count, wt = t.weights;
+        for (int x = 0, wo = 0; x < n; x++, wo += t.taps) {
+            int a = HALF, r = HALF, g = HALF, b = HALF;
+            for (int k = 0, s = off + start[x], c = count[x]; k < c; k++) {
+                int p = src[s + k], w = wt[wo + k];
+                a += (p >>> 24) * w;
+                r += ((p >>> 16) & 0xFF) * w;
+                g += ((p >>> 8) & 0xFF) * w;
+                b += (p & 0xFF) * w;
+            }
+            dst[doff + x] = pack(a, r, g, b);
+        }
+    }
+
+    /**
+     * Output row y of the vertical pass into dst (straight ARGB), CHUNK columns at a time so the
+     * four channel sums stay in L1 while every tap row is added in.
+     */
+    private static void filterColumns(int[] mid, int w, int y, Taps t, int[] acc, int[] dst, int doff) {
+        int wo = y * t.taps, c = t.count[y], first = t.start[y] * w;
+        for (int x0 = 0; x0 < w; x0 += CHUNK) {
+            int n = Math.min(CHUNK, w - x0);
+            java.util.Arrays.fill(acc, 0, 4 * n, HALF);
+            for (int k = 0; k < c; k++) {
+                int wk = t.weights[wo + k], row = first + k * w + x0;
+                if (wk == 0) continue;
+                for (int x = 0, j = 0; x < n; x++, j += 4) {
+                    int p = mid[row + x];
+                    acc[j] += (p >>> 24) * wk;
+                    acc[j + 1] += ((p >>> 16) & 0xFF) * wk;
+                    acc[j + 2] += ((p >>> 8) & 0xFF) * wk;
+                    acc[j + 3] += (p & 0xFF) * wk;
+                }
+            }
+            for (int x = 0, j = 0; x < n; x++, j += 4)
+                dst[doff + x0 + x] = Convolution.unpremultiply(pack(acc[j], acc[j + 1], acc[j + 2], acc[j + 3]));
+        }
+    }
+
+    /** Fixed-point sums to premultiplied ARGB: clamped to 0..255, colours to at most alpha. */
+    private static int pack(int a, int r, int g, int b) {
+        a = Math.max(0, Math.min(255, a >> BITS));
+        r = Math.max(0, Math.min(a, r >> BITS));
+        g = Math.max(0, Math.min(a, g >> BITS));
+        b = Math.max(0, Math.min(a, b >> BITS));
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private static boolean anyPainted(RasterDocument d, int y, int h) {
+        int cols = d.getTileCols();
+        for (int ty = y / T; ty <= (y + h - 1) / T; ty++)
+            for (int tx = 0; tx < cols; tx++) if (d.isTileAllocated(ty * cols + tx)) return true;
+        return false;
+    }
+}
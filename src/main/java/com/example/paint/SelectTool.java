@@ -1,6 +1,5 @@
 package com.example.paint;
 
-import javafx.scene.SnapshotParameters;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.Clipboard;
@@ -12,9 +11,6 @@ public class SelectTool implements Tool {
     private double sx, sy, ex, ey;
     private boolean dragging;
 
-    // persistent selection rect for cut (int bounds)
-    private int selX, selY, selW, selH;
-
     @Override public String getName(){ return "Select"; }
 
     @Override
@@ -57,18 +53,15 @@ public class SelectTool implements Tool {
         if (rw < 1 || rh < 1) { s.clearOverlay(); s.setSelection(null); return; }
 
         // clamp to canvas
-        int cw = (int) s.getBase().getWidth();
-        int ch = (int) s.getBase().getHeight();
-        selX = (int) Math.max(0, Math.min(rx, cw - 1));
-        selY = (int) Math.max(0, Math.min(ry, ch - 1));
-        selW = (int) Math.max(1, Math.min(rw, cw - selX));
-        selH = (int) Math.max(1, Math.min(rh, ch - selY));
-
-        // snapshot full canvas (transparent-aware) and crop → ghost
-        SnapshotParameters sp = new SnapshotParameters();
-        sp.setFill(Color.TRANSPARENT);
-        WritableImage full = s.getBase().snapshot(sp, null);
-        WritableImage snap = new WritableImage(full.getPixelReader(), selX, selY, selW, selH);
+        int cw = s.getDocument().getWidth();
+        int ch = s.getDocument().getHeight();
+        int selX = (int) Math.max(0, Math.min(rx, cw - 1));
+        int selY = (int) Math.max(0, Math.min(ry, ch - 1));
+        int selW = (int) Math.max(1, Math.min(rw, cw - selX));
+        int selH = (int) Math.max(1, Math.min(rh, ch - selY));
+
+        // copy just the selected rect out of the document (alpha kept) → ghost
+        WritableImage snap = s.getDocument().toImage(selX, selY, selW, selH);
 
         // show ghost + marquee (user can copy/cut; we’ll hide it after those actions)
         s.clearOverlay();
@@ -101,7 +94,10 @@ public class SelectTool implements Tool {
         s.setStatus("Copied (you can paste multiple times)");
     }
 
-    /** Cut selection: copy to clipboard, clear that rect on base (transparent), push once, hide marquee. */
+    /**
+     * Cut selection: copy to clipboard, clear it on base (transparent), push once, hide marquee.
+     * A shaped (magic wand) selection clears only its own pixels.
+     */
     public void cutSelection(CanvasState s, HistoryManager h) {
         if (s.getSelection() == null) return;
 
@@ -109,15 +105,103 @@ public class SelectTool implements Tool {
         cc.putImage(s.getSelection());
         Clipboard.getSystemClipboard().setContent(cc);
 
-        s.getBase().getGraphicsContext2D().clearRect(selX, selY, selW, selH);
-        h.push(); // one history entry
+        HistoryCommand cut = s.getSelectionMask() != null
+                ? new CutMask(s.getSelectionMask().copy())
+                : new Cut((int) s.getSelX(), (int) s.getSelY(),
+                          (int) s.getSelection().getWidth(), (int) s.getSelection().getHeight());
+        cut.apply(s);
+        h.push(cut); // one history entry
 
         s.clearOverlay();
         s.setSelection(null);
         s.setStatus("Cut (you can paste multiple times)");
     }
 
-    /** Paste under mouse (centered) -> draw DIRECTLY to BASE, push once; no overlay ghost kept. */
+    /** Clearing a cut rectangle to transparent (the clipboard side is not part of history). */
+    public record Cut(int x, int y, int w, int h) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            s.getDocument().fillRect(x, y, w, h, 0x00000000);
+            s.invalidate(x, y, w, h);
+        }
+    }
+
+    /** Clearing the pixels of a shaped selection, run by run. */
+    public record CutMask(RegionMask mask) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            if (mask.isEmpty()) return;
+            RasterDocument doc = s.getDocument();
+            mask.forEachRun((y, x0, x1) -> doc.fillRect(x0, y, x1 - x0 + 1, 1, 0x00000000));
+            s.invalidate(mask.getMinX(), mask.getMinY(),
+                    mask.getMaxX() - mask.getMinX() + 1, mask.getMaxY() - mask.getMinY() + 1);
+        }
+
+        @Override public long estimatedBytes() { return 64 + 8L * mask.bits.length; }
+    }
+
+    /**
+     * Scale the selected pixels to w×h (top-left kept) with the given resampling filter, push once,
+     * and select the scaled result. A shaped selection scales only its own pixels.
+     */
+    public static void scaleSelection(CanvasState s, HistoryManager h, int w, int hh, Resampler.Method m) {
+        Effects.Area a = Effects.Area.of(s);
+        if (a == null || a.isEmpty() || w < 1 || hh < 1) return;
+        Scale cmd = new Scale(a, w, hh, m);
+        cmd.apply(s);
+        h.push(cmd);
+
+        RasterDocument doc = s.getDocument();
+        if (a.mask() != null) {
+            MagicWandTool.select(s, scaledMask(a, w, hh, m, doc.getWidth(), doc.getHeight()));
+        } else {
+            int cw = Math.min(w, doc.getWidth() - a.x()), ch = Math.min(hh, doc.getHeight() - a.y());
+            s.clearOverlay();
+            s.setSelection(doc.toImage(a.x(), a.y(), cw, ch));
+            s.setSelPos(a.x(), a.y());
+            drawMarquee(s.getOverlay().getGraphicsContext2D(), a.x(), a.y(), cw, ch);
+        }
+        s.setStatus(String.format("Scaled selection to %d×%d (%s)", w, hh, m));
+    }
+
+    /**
+     * The area's mask scaled to w×h with the same filter as its pixels (as an alpha channel, kept
+     * where at least half covered), placed at the area's corner in a docW×docH mask.
+     */
+    private static RegionMask scaledMask(Effects.Area a, int w, int hh, Resampler.Method m, int docW, int docH) {
+        int[] cover = new int[a.w() * a.h()];
+        a.mask().forEachRun((y, x0, x1) -> java.util.Arrays.fill(cover, y * a.w() + x0, y * a.w() + x1 + 1, 0xFF000000));
+        int[] scaled = Resampler.resample(cover, a.w(), a.h(), w, hh, m);
+        RegionMask out = new RegionMask(docW, docH);
+        for (int y = 0; y < hh && a.y() + y < docH; y++)
+            for (int x = 0; x < w; x++)
+                if ((scaled[y * w + x] >>> 24) >= 128) out.add(a.x() + x, a.y() + y);
+        return out;
+    }
+
+    /** Lift the area's pixels, clear them, and composite them back scaled to w×h at the same corner. */
+    public record Scale(Effects.Area area, int w, int h, Resampler.Method method) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            RasterDocument doc = s.getDocument();
+            int aw = area.w(), ah = area.h();
+            int[] px = new int[aw * ah];
+            doc.readPixels(area.x(), area.y(), aw, ah, px, 0, aw);
+            int[] picked = px;
+            if (area.mask() != null) {
+                int[] sel = picked = new int[px.length];
+                area.mask().forEachRun((y, x0, x1) -> System.arraycopy(px, y * aw + x0, sel, y * aw + x0, x1 - x0 + 1));
+            }
+            area.write(doc, new int[aw * ah]);     // clear the source pixels
+            int[] scaled = Resampler.resample(picked, aw, ah, w, h, method);
+            doc.blendPixels(area.x(), area.y(), w, h, scaled, 0, w);
+            s.invalidate(area.x(), area.y(), Math.max(aw, w), Math.max(ah, h));
+        }
+
+        @Override public long estimatedBytes() { return Effects.Area.bytes(area); }
+    }
+
+    /** Paste under mouse (centered) -> draw DIRECTLY to the document, push once; no overlay ghost kept. */
     public void pasteFromClipboard(CanvasState s, HistoryManager h) {
         var cb = Clipboard.getSystemClipboard();
         var src = cb.getImage();
@@ -135,9 +219,11 @@ public class SelectTool implements Tool {
         var topLeft = s.clampPasteTopLeft(w, hImg, cx - w/2.0, cy - hImg/2.0);
         double px = topLeft.getX(), py = topLeft.getY();
 
-        // Draw to BASE immediately (no overlay), then push history
-        s.getBase().getGraphicsContext2D().drawImage(img, px, py);
-        h.push();
+        // Composite into the document immediately (no overlay), then push history
+        int ix = (int) Math.round(px), iy = (int) Math.round(py);
+        s.getDocument().drawImage(img, ix, iy);
+        s.invalidate(ix, iy, w, hImg);
+        h.push(); // carries new pixels → keyframe
 
         // Clear any overlay/marquee and selection state (paste is a finished action)
         s.clearOverlay();
@@ -0,0 +1,199 @@
+package com.example.paint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only scratch file in the temp directory for spilled undo tiles.
+ * - Records are Deflate-compressed int[] blocks, written into 64 MB memory-mapped segments.
+ * - Freed records leave holes; the file is compacted once it is mostly holes, by copying the
+ *   live records into a second file and switching to it. The two files take turns, so a long
+ *   session registers just two paths for deletion on exit.
+ * - Deleted on close (and on exit as a fallback).
+ */
+public class SpillFile implements Closeable {
+    private static final int SEGMENT = 64 << 20;
+
+    /** Location of one record; offsets move when the file is compacted. */
+    public static final class Ref {
+        private long offset;
+        private final int length;
+        private boolean freed;
+        private Ref(long offset, int length) { this.offset = offset; this.length = length; }
+        public int getLength() { return length; }
+    }
+
+    private final Path[] files = new Path[2];     // the current file and the next compaction target
+    private Path path;
+    private FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long end;                     // next write position
+    private long liveBytes;
+    private final Set<Ref> live = new HashSet<>();
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] raw = new byte[0], packed = new byte[0];
+
+    public SpillFile() throws IOException {
+        files[0] = path = Files.createTempFile("novapaint-undo-", ".spill");
+        files[1] = path.resolveSibling(path.getFileName() + ".1");
+        for (Path f : files) f.toFile().deleteOnExit();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /** Bytes still referenced (compressed). */
+    public long getLiveBytes() { return liveBytes; }
+    /** Bytes the file occupies, holes included. */
+    public long getFileBytes() { return end; }
+
+    // ---------- int[] records ----------
+    public Ref writeInts(int[] data) throws IOException {
+        int n = data.length * 4;
+        if (raw.length < n) raw = new byte[n];
+        ByteBuffer.wrap(raw, 0, n).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(data);
+
+        deflater.reset();
+        deflater.setInput(raw, 0, n);
+        deflater.finish();
+        if (packed.length < n + 64) packed = new byte[n + 64];
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == packed.length) packed = java.util.Arrays.copyOf(packed, packed.length * 2);
+            len += deflater.deflate(packed, len, packed.length - len);
+        }
+        return write(packed, len);
+    }
+
+    public int[] readInts(Ref r, int count) throws IOException {
+        byte[] src = read(r);
+        int n = count * 4;
+        if (raw.length < n) raw = new byte[n];
+        inflater.reset();
+        inflater.setInput(src);
+        try {
+            int got = 0;
+            while (got < n && !inflater.finished()) got += inflater.inflate(raw, got, n - got);
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt spill record", ex);
+        }
+        int[] out = new int[count];
+        ByteBuffer.wrap(raw, 0, n).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(out);
+        return out;
+    }
+
+    public void free(Ref r) {
+        if (r == null || r.freed) return;
+        r.freed = true;
+        live.remove(r);
+        liveBytes -= r.length;
+        if (live.isEmpty()) end = 0; // nothing left: start over at the front
+    }
+
+    // ---------- raw records ----------
+    private Ref write(byte[] data, int len) throws IOException {
+        if (len > SEGMENT) throw new IOException("Spill record too large: " + len);
+        long seg = end / SEGMENT;
+        if ((end + len - 1) / SEGMENT != seg) end = (seg + 1) * SEGMENT; // never straddle segments
+        ByteBuffer b = segment((int) (end / SEGMENT)).duplicate();
+        b.position((int) (end % SEGMENT));
+        b.put(data, 0, len);
+
+        Ref r = new Ref(end, len);
+        end += len;
+        live.add(r);
+        liveBytes += len;
+        return r;
+    }
+
+    private byte[] read(Ref r) throws IOException {
+        if (r.freed) throw new IOException("Spill record already freed");
+        ByteBuffer b = segment((int) (r.offset / SEGMENT)).duplicate();
+        b.position((int) (r.offset % SEGMENT));
+        byte[] out = new byte[r.length];
+        b.get(out);
+        return out;
+    }
+
+    private MappedByteBuffer segment(int i) throws IOException {
+        while (segments.size() <= i) {
+            long start = (long) segments.size() * SEGMENT;
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT));
+        }
+        return segments.get(i);
+    }
+
+    /**
+     * Rewrite live records into the other file when more than half this one is holes. Nothing
+     * changes until every record is safely written there; the old file is then deleted on a
+     * best-effort basis (a still-mapped file cannot be deleted on some systems; exit cleans up).
+     */
+    public void compactIfSparse() throws IOException {
+        if (end < SEGMENT || liveBytes * 2 > end) return;
+        Path next = files[0].equals(path) ? files[1] : files[0];
+        FileChannel target;
+        try {
+            Files.deleteIfExists(next);
+            target = FileChannel.open(next, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            return;                                   // previous file still held: compact next time
+        }
+
+        // 1. copy: the same layout rule as write(), positional writes into the new file
+        List<Ref> refs = new ArrayList<>(live);
+        long[] offsets = new long[refs.size()];
+        long pos = 0;
+        try {
+            for (int i = 0; i < refs.size(); i++) {
+                Ref r = refs.get(i);
+                if ((pos + r.length - 1) / SEGMENT != pos / SEGMENT) pos = (pos / SEGMENT + 1) * SEGMENT;
+                ByteBuffer b = ByteBuffer.wrap(read(r));
+                while (b.hasRemaining()) target.write(b, pos + b.position());
+                offsets[i] = pos;
+                pos += r.length;
+            }
+        } catch (IOException ex) {
+            try { target.close(); } catch (IOException ignored) {}
+            try { Files.deleteIfExists(next); } catch (IOException ignored) {}
+            throw ex;                                 // this file and every Ref are untouched
+        }
+
+        // 2. switch over
+        Path old = path;
+        FileChannel oldChannel = channel;
+        path = next;
+        channel = target;
+        segments.clear();                             // remapped lazily from the new file
+        end = pos;
+        for (int i = 0; i < refs.size(); i++) refs.get(i).offset = offsets[i];
+
+        // 3. best effort: the switch has already succeeded
+        try { oldChannel.close(); } catch (IOException ignored) {}
+        try { Files.deleteIfExists(old); } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void close() {
+        try { channel.close(); } catch (IOException ignored) {}
+        segments.clear();
+        for (Path f : files) try { Files.deleteIfExists(f); } catch (IOException ignored) {}
+        live.clear();
+        liveBytes = 0;
+        end = 0;
+    }
+}
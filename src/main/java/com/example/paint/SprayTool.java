@@ -2,44 +2,88 @@ package com.example.paint;
 
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.paint.Color;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class SprayTool implements Tool {
     private boolean spraying;
     private static final int PARTICLES = 30;
+    private final List<double[]> points = new ArrayList<>();
+    // per-gesture settings; the seeded generator makes the particles replayable
+    private long seed;
+    private SplittableRandom rnd;
+    private Color color;
+    private double radius;
 
     @Override public String getName(){ return "Spray"; }
 
     @Override
     public void onPress(CanvasState s, HistoryManager h, MouseEvent e) {
         spraying = true;
-        sprayAt(s.getBase().getGraphicsContext2D(), s, e.getX(), e.getY());
+        points.clear();
+        seed = ThreadLocalRandom.current().nextLong();
+        rnd = new SplittableRandom(seed);
+        color = s.getStroke();
+        radius = s.getBrush() * 0.8;
+        s.clearOverlay(); // particles are previewed on the overlay until release
+        points.add(new double[]{e.getX(), e.getY()});
+        sprayAt(s.getOverlay().getGraphicsContext2D(), rnd, color, radius, e.getX(), e.getY());
     }
 
     @Override
     public void onDrag(CanvasState s, HistoryManager h, MouseEvent e) {
         if (!spraying) return;
-        sprayAt(s.getBase().getGraphicsContext2D(), s, e.getX(), e.getY());
+        points.add(new double[]{e.getX(), e.getY()});
+        sprayAt(s.getOverlay().getGraphicsContext2D(), rnd, color, radius, e.getX(), e.getY());
     }
 
     @Override
     public void onRelease(CanvasState s, HistoryManager h, MouseEvent e) {
         if (!spraying) return;
         spraying = false;
-        h.push(); // one history step per spray gesture
+        double[] xy = new double[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            xy[2 * i] = points.get(i)[0];
+            xy[2 * i + 1] = points.get(i)[1];
+        }
+        points.clear();
+        Spray spray = new Spray(xy, seed, color, radius);
+        s.clearOverlay(); // the preview gives way to the spray rendered into the document
+        spray.apply(s);
+        h.push(spray); // one history step per spray gesture
     }
 
-    private void sprayAt(GraphicsContext g, CanvasState s, double x, double y) {
-        g.setFill(s.getStroke());
-        double r = s.getBrush() * 0.8;
-        var rnd = ThreadLocalRandom.current();
+    private static void sprayAt(GraphicsContext g, SplittableRandom rnd, Color color, double r, double x, double y) {
+        g.setFill(color);
         for (int i=0; i<PARTICLES; i++) {
             double a = rnd.nextDouble(0, Math.PI*2);
-            double d = rnd.nextDouble(0, r);
+            double d = r > 0 ? rnd.nextDouble(0, r) : 0;
             double px = x + Math.cos(a)*d;
             double py = y + Math.sin(a)*d;
             g.fillRect(px, py, 1, 1);
         }
     }
+
+    /** One spray gesture: the sample points and the seed that generated its particles. */
+    public record Spray(double[] xy, long seed, Color color, double radius) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            double minX = xy[0], maxX = xy[0], minY = xy[1], maxY = xy[1];
+            for (int i = 2; i < xy.length; i += 2) {
+                minX = Math.min(minX, xy[i]);     maxX = Math.max(maxX, xy[i]);
+                minY = Math.min(minY, xy[i + 1]); maxY = Math.max(maxY, xy[i + 1]);
+            }
+            double pad = radius + 2; // spray radius + particle size
+            s.drawToDocument(minX - pad, minY - pad, maxX - minX + 2 * pad, maxY - minY + 2 * pad, g -> {
+                SplittableRandom rnd = new SplittableRandom(seed);   // same particles on every piece
+                for (int i = 0; i < xy.length; i += 2) sprayAt(g, rnd, color, radius, xy[i], xy[i + 1]);
+            });
+        }
+
+        @Override public long estimatedBytes() { return 64 + 8L * xy.length; }
+    }
 }
@@ -2,7 +2,6 @@ package com.example.paint;
 
 import javafx.geometry.Point2D;
 import javafx.scene.Cursor;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.CustomMenuItem;
@@ -101,8 +100,8 @@ public class TextTool implements Tool {
         CustomMenuItem item = new CustomMenuItem(content, false); // don't auto-hide on click
         popup = new ContextMenu(item);
 
-        // Position near the cursor (convert overlay local → screen)
-        Point2D screen = s.getOverlay().localToScreen(e.getX(), e.getY());
+        // Position near the cursor (convert input-surface local → screen)
+        Point2D screen = s.getInputSurface().localToScreen(e.getX(), e.getY());
         if (screen != null) {
             popup.show(s.getViewport(), screen.getX(), screen.getY());
         } else {
@@ -140,23 +139,33 @@ public class TextTool implements Tool {
     /* ---------- Drawing ---------- */
 
     private void commitText(CanvasState s, HistoryManager h, String text, double x, double y) {
-        var g = s.getBase().getGraphicsContext2D();
-
         // Use the dedicated text color; ignore stroke entirely by default
-        javafx.scene.paint.Color textColor =
-                s.getTextColor() != null ? s.getTextColor() : javafx.scene.paint.Color.BLACK;
-
-        javafx.scene.text.Font font = currentFont(s);
-        g.setFont(font);
-
-        double baselineY = y + font.getSize(); // draw from a top-left click
-        g.setFill(textColor);
-        g.fillText(text, x, baselineY);
-
-        h.push(); // single history entry
+        Color textColor = s.getTextColor() != null ? s.getTextColor() : Color.BLACK;
+        Label label = new Label(text, currentFont(s), textColor, x, y);
+        label.apply(s);
+        h.push(label); // single history entry
     }
 
+    /** Text drawn with its top-left at (x,y). */
+    public record Label(String text, Font font, Color color, double x, double y) implements HistoryCommand {
+        @Override
+        public void apply(CanvasState s) {
+            double baselineY = y + font.getSize(); // draw from a top-left click
+
+            // render just the text's box (layout bounds plus a margin for overhanging glyphs)
+            javafx.scene.text.Text probe = new javafx.scene.text.Text(text);
+            probe.setFont(font);
+            var lb = probe.getLayoutBounds();
+            double pad = font.getSize() * 0.5;
+            s.drawToDocument(x - pad, baselineY + lb.getMinY() - pad, lb.getWidth() + 2 * pad, lb.getHeight() + 2 * pad, g -> {
+                g.setFont(font);
+                g.setFill(color);
+                g.fillText(text, x, baselineY);
+            });
+        }
 
+        @Override public long estimatedBytes() { return 96 + 2L * text.length(); }
+    }
 
     private Font currentFont(CanvasState s) {
         String family = s.getFontFamilyBox().getValue();
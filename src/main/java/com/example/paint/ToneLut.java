@@ -0,0 +1,137 @@
+package com.example.paint;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Tonal adjustments compiled to lookup tables: one 256-entry table per colour channel.
+ * - Levels, curves, contrast, gamma and invert each build a table; {@link #then} composes two
+ *   into one, so a whole stack of them costs one lookup per channel per pixel
+ * - Alpha is kept, and fully transparent pixels are left alone (a valid {@link PixelKernel})
+ * - Immutable
+ */
+public final class ToneLut {
+
+    /** Which channels a levels or curves table applies to; the others pass through. */
+    public enum Channel { RGB, RED, GREEN, BLUE }
+
+    public static final ToneLut IDENTITY = new ToneLut(table(v -> v), table(v -> v), table(v -> v));
+
+    private final int[] r, g, b;                   // 0..255 -> 0..255
+
+    private ToneLut(int[] r, int[] g, int[] b) {
+        this.r = r;
+        this.g = g;
+        this.b = b;
+    }
+
+    // ---------- Tables ----------
+    /** The same mapping on every channel; f is clamped to 0..255. */
+    public static ToneLut of(IntUnaryOperator f) { return of(Channel.RGB, f); }
+
+    public static ToneLut of(Channel c, IntUnaryOperator f) {
+        int[] t = table(f), id = IDENTITY.r;
+        return new ToneLut(c == Channel.RGB || c == Channel.RED ? t : id,
+                           c == Channel.RGB || c == Channel.GREEN ? t : id,
+                           c == Channel.RGB || c == Channel.BLUE ? t : id);
+    }
+
+    public static ToneLut invert() { return of(v -> 255 - v); }
+
+    /** Contrast around mid-grey: -1 flattens to grey, 0 is unchanged, towards 1 a hard threshold. */
+    public static ToneLut contrast(double amount) {
+        double k = Math.tan((Math.max(-1, Math.min(0.999, amount)) + 1) * Math.PI / 4);
+        return of(v -> (int) Math.round((v - 127.5) * k + 127.5));
+    }
+
+    /** Gamma correction: above 1 lightens the midtones, below 1 darkens them; black and white stay. */
+    public static ToneLut gamma(double gamma) {
+        double e = 1 / Math.max(0.01, gamma);
+        return of(v -> (int) Math.round(255 * Math.pow(v / 255.0, e)));
+    }
+
+    /**
+     * Levels: inBlack..inWhite is stretched to outBlack..outWhite with gamma on the midtones
+     * (as {@link #gamma}); input outside the range clips.
+     */
+    public static ToneLut levels(Channel c, int inBlack, int inWhite, double gamma, int outBlack, int outWhite) {
+        double span = Math.max(1, inWhite - inBlack), e = 1 / Math.max(0.01, gamma);
+        return of(c, v -> {
+            double t = Math.max(0, Math.min(1, (v - inBlack) / span));
+            return (int) Math.round(outBlack + (outWhite - outBlack) * Math.pow(t, e));
+        });
+    }
+
+    /**
+     * A smooth curve through control points (x ascending, both 0..255), monotone between
+     * them so it never overshoots; flat before the first point and after the last.
+     */
+    public static ToneLut curve(Channel c, double[] x, double[] y) {
+        int n = x.length;
+        if (n == 0 || y.length != n) throw new IllegalArgumentException("curve needs matching x and y points");
+        if (n == 1) return of(c, v -> (int) Math.round(y[0]));
+        // Fritsch–Carlson tangents
+        double[] d = new double[n - 1], m = new double[n];
+        for (int i = 0; i < n - 1; i++) d[i] = (y[i + 1] - y[i]) / Math.max(1e-9, x[i + 1] - x[i]);
+        m[0] = d[0];
+        m[n - 1] = d[n - 2];
+        for (int i = 1; i < n - 1; i++) m[i] = d[i - 1] * d[i] <= 0 ? 0 : (d[i - 1] + d[i]) / 2;
+        for (int i = 0; i < n - 1; i++) {
+            if (d[i] == 0) { m[i] = m[i + 1] = 0; continue; }
+            double a = m[i] / d[i], bb = m[i + 1] / d[i], s = a * a + bb * bb;
+            if (s > 9) {
+                double t = 3 / Math.sqrt(s);
+                m[i] = t * a * d[i];
+                m[i + 1] = t * bb * d[i];
+            }
+        }
+        return of(c, v -> {
+            if (v <= x[0]) return (int) Math.round(y[0]);
+            if (v >= x[n - 1]) return (int) Math.round(y[n - 1]);
+            int i = 0;
+            while (v > x[i + 1]) i++;
+            double hh = x[i + 1] - x[i], t = (v - x[i]) / hh, t2 = t * t, t3 = t2 * t;
+            double out = (2 * t3 - 3 * t2 + 1) * y[i] + (t3 - 2 * t2 + t) * hh * m[i]
+                    + (-2 * t3 + 3 * t2) * y[i + 1] + (t3 - t2) * hh * m[i + 1];
+            return (int) Math.round(out);
+        });
+    }
+
+    // ---------- Composition ----------
+    /** This table followed by next, as one table. */
+    public ToneLut then(ToneLut next) {
+        int[] cr = new int[256], cg = new int[256], cb = new int[256];
+        for (int v = 0; v < 256; v++) {
+            cr[v] = next.r[r[v]];
+            cg[v] = next.g[g[v]];
+            cb[v] = next.b[b[v]];
+        }
+        return new ToneLut(cr, cg, cb);
+    }
+
+    public int map(int argb) {
+        if ((argb >>> 24) == 0) return argb;
+        return (argb & 0xFF000000) | (r[(argb >>> 16) & 0xFF] << 16) | (g[(argb >>> 8) & 0xFF] << 8) | b[argb & 0xFF];
+    }
+
+    /** Three lookups per pixel; the tables are pre-shifted into place. */
+    public PixelKernel kernel() {
+        int[] rs = new int[256], gs = new int[256], bs = b.clone();
+        for (int v = 0; v < 256; v++) {
+            rs[v] = r[v] << 16;
+            gs[v] = g[v] << 8;
+        }
+        return (px, off, len) -> {
+            for (int i = off, end = off + len; i < end; i++) {
+                int p = px[i];
+                if ((p >>> 24) == 0) continue;
+                px[i] = (p & 0xFF000000) | rs[(p >>> 16) & 0xFF] | gs[(p >>> 8) & 0xFF] | bs[p & 0xFF];
+            }
+        };
+    }
+
+    private static int[] table(IntUnaryOperator f) {
+        int[] t = new int[256];
+        for (int v = 0; v < 256; v++) t[v] = Math.max(0, Math.min(255, f.applyAsInt(v)));
+        return t;
+    }
+}